@@ -0,0 +1,176 @@
+/**
+ * Represents a hash index from base addresses to the slots of a PooledBlockList.
+ * For each address, the index holds the slot of the first element of the list whose
+ * block starts at that address, and the number of elements whose blocks start at
+ * that address.
+ * <p>
+ * The index uses open addressing with linear probing over primitive arrays, so a
+ * lookup does not box the address or allocate any objects. A slot whose count is
+ * zero is empty. Removed entries are filled by shifting the following entries of
+ * the probe sequence backward, so no tombstones are left behind.
+ */
+public class AddressIndex {
+
+	// The initial number of slots; always a power of two
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] keys;      // the address of each slot
+	private int[] values;    // the list slot of the first element with the slot's address
+	private int[] counts;    // the number of elements with the slot's address, 0 if the slot is empty
+	private int size;        // the number of non-empty slots
+
+	/**
+	 * Constructs a new, empty index.
+	 */
+	public AddressIndex() {
+		keys = new int[INITIAL_CAPACITY];
+		values = new int[INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Gets the number of distinct addresses in this index.
+	 * @return The number of addresses.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Finds the slot of the given address.
+	 * 
+	 * @param address
+	 *        the address to look up
+	 * @return the slot of the address, or -1 if the address is not in this index
+	 */
+	public int find(int address) {
+		int mask = keys.length - 1;
+		for (int i = hash(address) & mask; counts[i] != 0; i = (i + 1) & mask) {
+			if (keys[i] == address) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the list slot stored in the given slot.
+	 * 
+	 * @param slot
+	 *        a slot returned by find
+	 * @return the list slot of the first element with the slot's address
+	 */
+	public int getValue(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * Replaces the list slot stored in the given slot.
+	 * 
+	 * @param slot
+	 *        a slot returned by find
+	 * @param value
+	 *        the list slot of the element that is now the first with the slot's address
+	 */
+	public void setValue(int slot, int value) {
+		values[slot] = value;
+	}
+
+	/**
+	 * Gets the number of elements whose blocks start at the address of the given slot.
+	 * 
+	 * @param slot
+	 *        a slot returned by find
+	 * @return the number of elements with the slot's address
+	 */
+	public int getCount(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * Records one more element whose block starts at the given address. If the address
+	 * is new to this index, the given list slot is stored for it; otherwise the new
+	 * element comes after the first element with that address, whose slot is kept.
+	 * 
+	 * @param address
+	 *        the address of the element's block
+	 * @param value
+	 *        the list slot of the new element
+	 */
+	public void add(int address, int value) {
+		int slot = find(address);
+		if (slot >= 0) {
+			counts[slot]++;
+			return;
+		}
+		if (2 * (size + 1) > keys.length) {
+			resize(2 * keys.length);
+		}
+		int mask = keys.length - 1;
+		int i = hash(address) & mask;
+		while (counts[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = address;
+		values[i] = value;
+		counts[i] = 1;
+		size++;
+	}
+
+	/**
+	 * Records one element less for the address of the given slot, and removes the address
+	 * from this index if it has no nodes left. The slots of other addresses may move.
+	 * 
+	 * @param slot
+	 *        a slot returned by find
+	 */
+	public void remove(int slot) {
+		if (--counts[slot] > 0) {
+			return;
+		}
+		size--;
+		// Shifts back the following entries of the probe sequence that can no longer
+		// be reached from their home slot, past the emptied slot.
+		int mask = keys.length - 1;
+		int empty = slot;
+		for (int i = (slot + 1) & mask; counts[i] != 0; i = (i + 1) & mask) {
+			int home = hash(keys[i]) & mask;
+			if (((i - home) & mask) >= ((i - empty) & mask)) {
+				keys[empty] = keys[i];
+				values[empty] = values[i];
+				counts[empty] = counts[i];
+				counts[i] = 0;
+				empty = i;
+			}
+		}
+	}
+
+	// Moves all the entries into new arrays of the given capacity.
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		int[] oldCounts = counts;
+		keys = new int[capacity];
+		values = new int[capacity];
+		counts = new int[capacity];
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldCounts[j] != 0) {
+				int i = hash(oldKeys[j]) & mask;
+				while (counts[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+				counts[i] = oldCounts[j];
+			}
+		}
+	}
+
+	// Spreads the bits of the given address, so that nearby addresses do not cluster.
+	private static int hash(int address) {
+		int h = address * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Represents the memory blocks that are presently allocated by an allocator engine.
+ * The blocks are kept in the order in which they were allocated.
+ * <p>
+ * The blocks are stored in a PooledBlockList, and an AddressIndex maps the base address
+ * of each block to its slot in the list, so a block is found and unlinked in O(1) time,
+ * and an address that is not allocated (never allocated, or already freed) is rejected
+ * in O(1) time as well. Adding and removing blocks through the int methods allocates
+ * no Java objects.
+ */
+public class AllocationTable {
+
+	// A list of the memory blocks that are presently allocated
+	private PooledBlockList allocatedList;
+
+	// Maps the base address of each allocated block to its slot in allocatedList
+	private AddressIndex index;
+
+	/**
+	 * Constructs a new, empty allocation table.
+	 */
+	public AllocationTable() {
+		allocatedList = new PooledBlockList();
+		index = new AddressIndex();
+	}
+
+	/**
+	 * Gets the number of blocks that are presently allocated.
+	 * @return The number of allocated blocks.
+	 */
+	public int getSize() {
+		return allocatedList.getSize();
+	}
+
+	/**
+	 * Gets the slot of the block that was allocated first, to iterate over the blocks in
+	 * the order of allocation with getNext.
+	 * @return The first slot, or PooledBlockList.NIL if the table is empty.
+	 */
+	public int getFirst() {
+		return allocatedList.getFirst();
+	}
+
+	/**
+	 * Gets the slot of the block that was allocated after the block in the given slot.
+	 * @return The next slot, or PooledBlockList.NIL if the given slot holds the last block.
+	 */
+	public int getNext(int slot) {
+		return allocatedList.getNext(slot);
+	}
+
+	/**
+	 * Gets the base address of the block in the given slot.
+	 * @return The base address.
+	 */
+	public int getBaseAddress(int slot) {
+		return allocatedList.getBaseAddress(slot);
+	}
+
+	/**
+	 * Gets the length of the block in the given slot.
+	 * @return The length, in words.
+	 */
+	public int getLength(int slot) {
+		return allocatedList.getLength(slot);
+	}
+
+	/**
+	 * Appends the given memory block to the end of this table.
+	 * 
+	 * @param block
+	 *        the block that was allocated
+	 */
+	public void add(MemoryBlock block) {
+		add(block.baseAddress, block.length);
+	}
+
+	/**
+	 * Appends a block with the given base address and length to the end of this table.
+	 * 
+	 * @param baseAddress
+	 *        the base address of the block that was allocated
+	 * @param length
+	 *        the length of the block that was allocated
+	 */
+	public void add(int baseAddress, int length) {
+		index.add(baseAddress, allocatedList.addLast(baseAddress, length));
+	}
+
+	/**
+	 * Removes the block whose base address equals the given address from this table.
+	 * 
+	 * @param address
+	 *        the base address of the block that has to be removed
+	 * @return the removed block, or null if no allocated block starts at the given address
+	 * @throws IllegalArgumentException
+	 *         if the table is empty
+	 */
+	public MemoryBlock remove(int address) {
+		int length = removeLength(address);
+		return (length < 0) ? null : new MemoryBlock(address, length);
+	}
+
+	/**
+	 * Removes the block whose base address equals the given address from this table.
+	 * 
+	 * @param address
+	 *        the base address of the block that has to be removed
+	 * @return the length of the removed block, or -1 if no allocated block starts at the
+	 *         given address
+	 * @throws IllegalArgumentException
+	 *         if the table is empty
+	 */
+	public int removeLength(int address) {
+		if (allocatedList.getSize() == 0) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		int slot = index.find(address);
+		if (slot < 0) {
+			return -1;
+		}
+		int listSlot = index.getValue(slot);
+		if (index.getCount(slot) > 1) {
+			// Zero-length blocks can share their address with the next block allocated;
+			// the next one with this address is found by a scan.
+			int next = allocatedList.getNext(listSlot);
+			while (allocatedList.getBaseAddress(next) != address) {
+				next = allocatedList.getNext(next);
+			}
+			index.setValue(slot, next);
+		}
+		index.remove(slot);
+		int length = allocatedList.getLength(listSlot);
+		allocatedList.remove(listSlot);
+		return length;
+	}
+
+	/**
+	 * A textual representation of the allocated blocks, for debugging.
+	 */
+	public String toString() {
+		return allocatedList.toString();
+	}
+}
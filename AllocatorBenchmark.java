@@ -0,0 +1,102 @@
+/**
+ * Measures the latency of malloc and free under a fragmenting workload, for each
+ * of the allocator engines. The memory space is first filled with blocks of random
+ * lengths, every other block is freed to leave many small free blocks, and then a
+ * random mix of mallocs and frees is timed one call at a time. The program prints
+ * the median, 99th, 99.9th percentile and maximal latency of each engine, and the
+ * number of bytes of Java objects allocated per timed call. For the list-scanning
+ * engines it also prints the average number of free blocks inspected per malloc.
+ * <p>
+ * Usage: java AllocatorBenchmark [liveBlocks] [operations] [engine ...]
+ * <br>
+ * The engines are given by their AllocatorEngines names (all built-in engines by default).
+ */
+public class AllocatorBenchmark {
+
+	// The largest block length requested by the workload
+	private static final int MAX_LENGTH = 64;
+
+	// The number of untimed rounds that run before the measured one
+	private static final int WARMUP_ROUNDS = 2;
+
+	public static void main(String[] args) {
+		int liveBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		String[] engines = AllocatorEngines.NAMES;
+		if (args.length > 2) {
+			engines = java.util.Arrays.copyOfRange(args, 2, args.length);
+		}
+		System.out.println("live blocks: " + liveBlocks + ", operations: " + operations);
+		System.out.printf("%-16s %10s %10s %10s %10s %10s %10s%n",
+				"engine", "p50 ns", "p99 ns", "p99.9 ns", "max ns", "bytes/op", "inspected");
+		int maxSize = 2 * liveBlocks * MAX_LENGTH;
+		long[] latencies = new long[operations];
+		for (String name : engines) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				run(AllocatorEngines.create(name, maxSize), liveBlocks, latencies);
+			}
+			AllocatorEngine engine = AllocatorEngines.create(name, maxSize);
+			long bytes = run(engine, liveBlocks, latencies);
+			java.util.Arrays.sort(latencies);
+			String inspected = (engine instanceof FirstFitEngine)
+					? String.format("%.1f", ((FirstFitEngine) engine).getAverageInspected()) : "-";
+			System.out.printf("%-16s %10d %10d %10d %10d %10.1f %10s%n", name,
+					percentile(latencies, 50), percentile(latencies, 99),
+					percentile(latencies, 99.9), latencies[latencies.length - 1],
+					(double) bytes / operations, inspected);
+		}
+	}
+
+	// Runs the workload on the given engine, stores the latency of each timed call in
+	// the given array, and returns the number of bytes allocated during the timed calls.
+	private static long run(AllocatorEngine engine, int liveBlocks, long[] latencies) {
+		int operations = latencies.length;
+		java.util.Random random = new java.util.Random(42);
+		MemorySpace memory = new MemorySpace(engine);
+		int[] live = new int[2 * liveBlocks + operations];
+		int count = 0;
+		for (int i = 0; i < 2 * liveBlocks; i++) {
+			int address = memory.malloc(1 + random.nextInt(MAX_LENGTH));
+			if (address >= 0) {
+				live[count++] = address;
+			}
+		}
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			if (i % 2 == 0) {
+				memory.free(live[i]);
+			} else {
+				live[kept++] = live[i];
+			}
+		}
+		count = kept;
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+		long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < operations; i++) {
+			if (count > 0 && random.nextBoolean()) {
+				int j = random.nextInt(count);
+				int address = live[j];
+				live[j] = live[--count];
+				long start = System.nanoTime();
+				memory.free(address);
+				latencies[i] = System.nanoTime() - start;
+			} else {
+				int length = 1 + random.nextInt(MAX_LENGTH);
+				long start = System.nanoTime();
+				int address = memory.malloc(length);
+				latencies[i] = System.nanoTime() - start;
+				if (address >= 0) {
+					live[count++] = address;
+				}
+			}
+		}
+		return threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+	}
+
+	// Returns the given percentile of the given sorted latencies.
+	private static long percentile(long[] sorted, double percent) {
+		int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
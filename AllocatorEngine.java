@@ -0,0 +1,39 @@
+/**
+ * Represents the data structure and placement policy behind a MemorySpace.
+ * A MemorySpace forwards its "malloc", "free" and "defrag" calls to an engine,
+ * so different ways of tracking the free memory blocks can be swapped in without
+ * changing the code that uses the memory space.
+ */
+public interface AllocatorEngine {
+
+	/**
+	 * Allocates a memory block of a requested length (in words).
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	int malloc(int length);
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * 
+	 * @param address
+	 *        the base address of the block that has to be freed
+	 * @throws IllegalArgumentException
+	 *         if no block is presently allocated
+	 */
+	void free(int address);
+
+	/**
+	 * Merges adjacent free memory blocks into larger blocks.
+	 */
+	void defrag();
+
+	/**
+	 * A textual representation of the free blocks and the allocated blocks of this
+	 * engine, for debugging purposes. The free blocks appear in the first line and 
+	 * the allocated blocks in the second line.
+	 */
+	String toString();
+}
@@ -0,0 +1,109 @@
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Creates allocator engines by name, so that a MemorySpace can be given its engine by a
+ * constructor argument or by the system property ENGINE_PROPERTY, without the calling
+ * code referring to any engine class.
+ * <p>
+ * The built-in engines are listed by NAMES. Any other name is taken as the name of a
+ * class that implements AllocatorEngine and has a public constructor with a single int
+ * parameter, the size of the memory space.
+ */
+public class AllocatorEngines {
+
+	/** The system property that selects the engine of a MemorySpace constructed by size only. */
+	public static final String ENGINE_PROPERTY = "memoryspace.engine";
+
+	/** The name of the engine used when no engine is selected. */
+	public static final String DEFAULT_ENGINE = "first-fit";
+
+	/** The names of the built-in engines. */
+	public static final String[] NAMES = {
+		"first-fit", "next-fit", "address-ordered", "first-fit-tree", "pooled",
+		"size-class", "best-fit", "buddy", "tlsf", "bitmap",
+		"lock-free"
+	};
+
+	/**
+	 * Creates the engine with the given name, for a memory space of the given size.
+	 * 
+	 * @param name
+	 *        the name of a built-in engine, or the name of an engine class
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @return a new engine
+	 * @throws IllegalArgumentException
+	 *         if the name is null, or is not a built-in engine, nor a class that can be used
+	 *         as an engine
+	 * @throws RuntimeException
+	 *         the exception thrown by the constructor of an engine class, as is
+	 */
+	public static AllocatorEngine create(String name, int maxSize) {
+		if (name == null) {
+			throw new IllegalArgumentException("engine name must not be null");
+		}
+		switch (name) {
+			case "first-fit":
+				return new FirstFitEngine(maxSize);
+			case "next-fit":
+				return new FirstFitEngine(maxSize, false, true);
+			case "address-ordered":
+				return new FirstFitEngine(maxSize, true);
+			case "first-fit-tree":
+				return new FirstFitTreeEngine(maxSize);
+			case "pooled":
+				return new PooledFirstFitEngine(maxSize);
+			case "size-class":
+				return new SizeClassEngine(maxSize);
+			case "best-fit":
+				return new BestFitEngine(maxSize);
+			case "buddy":
+				return new BuddyEngine(maxSize);
+			case "tlsf":
+				return new TlsfEngine(maxSize);
+			case "bitmap":
+				return new BitmapEngine(maxSize);
+			case "lock-free":
+				return new LockFreeEngine(maxSize);
+			default:
+				return createByClassName(name, maxSize);
+		}
+	}
+
+	/**
+	 * Creates the engine selected by the system property ENGINE_PROPERTY, or the default
+	 * engine if the property is not set, for a memory space of the given size.
+	 * 
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @return a new engine
+	 * @throws IllegalArgumentException
+	 *         if the property names no usable engine
+	 */
+	public static AllocatorEngine fromSystemProperty(int maxSize) {
+		return create(System.getProperty(ENGINE_PROPERTY, DEFAULT_ENGINE), maxSize);
+	}
+
+	// Creates an engine by calling the int constructor of the class with the given name.
+	private static AllocatorEngine createByClassName(String name, int maxSize) {
+		try {
+			Class<?> engineClass = Class.forName(name);
+			if (!AllocatorEngine.class.isAssignableFrom(engineClass)) {
+				throw new IllegalArgumentException("not an allocator engine: " + name);
+			}
+			return (AllocatorEngine) engineClass.getConstructor(int.class).newInstance(maxSize);
+		} catch (InvocationTargetException e) {
+			// The engine exists, and its constructor failed
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalArgumentException("engine " + name + " could not be created", cause);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("unknown engine: " + name, e);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves free extents between the arenas of a ConcurrentMemorySpace, so that an arena
+ * that runs dry gets memory from arenas that are mostly free, and the threads of that
+ * arena keep allocating in it instead of contending for the locks of other arenas.
+ * Only extents with no allocated blocks move, and a donor arena always keeps at least
+ * one extent.
+ * <p>
+ * The rebalancer works in two ways. When the home arena of a thread cannot satisfy a
+ * request, the memory space asks the rebalancer, which moves a long enough extent from
+ * the arena under the least pressure (see ConcurrentMemorySpace.getArenaPressure) and
+ * retries the request there; a request that succeeds this way is counted as kept home.
+ * Such a request might have been satisfied by another arena as well, so the count is not
+ * one of failures avoided, but of requests that did not have to leave their home arena.
+ * In addition, rebalance moves extents from the arenas under the least pressure
+ * to the arenas under the most, while their pressures differ by more than a threshold;
+ * start runs it periodically on a background thread. A run that throws is counted as a
+ * failed pass, and the next runs go on.
+ * <p>
+ * The arenas to take from and give to are chosen by the pressures and extent counts that
+ * the memory space reads without locks, so a failed request does not lock every arena;
+ * only the donor and the recipient are locked while an extent moves. When no arena has
+ * a spare extent, as with one extent per arena, nothing is locked at all.
+ */
+public class ArenaRebalancer {
+
+	/** The default difference of pressures above which rebalance moves extents. */
+	public static final double DEFAULT_THRESHOLD = 0.5;
+
+	// The memory space whose arenas are rebalanced
+	private final ConcurrentMemorySpace space;
+
+	// The difference of pressures above which rebalance moves extents
+	private final double threshold;
+
+	// The metrics
+	private final AtomicLong migrations = new AtomicLong();
+	private final AtomicLong migratedWords = new AtomicLong();
+	private final AtomicLong failedMallocs = new AtomicLong();
+	private final AtomicLong keptHomeMallocs = new AtomicLong();
+	private final AtomicLong scheduledPasses = new AtomicLong();
+	private final AtomicLong failedPasses = new AtomicLong();
+
+	// The background thread that runs rebalance, or null if it is not started
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Constructs a rebalancer for the given memory space, with the default threshold, and
+	 * makes the memory space ask it when a home arena cannot satisfy a request.
+	 *
+	 * @param space
+	 *            the memory space whose arenas are rebalanced
+	 */
+	public ArenaRebalancer(ConcurrentMemorySpace space) {
+		this(space, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Constructs a rebalancer for the given memory space, and makes the memory space ask
+	 * it when a home arena cannot satisfy a request.
+	 *
+	 * @param space
+	 *            the memory space whose arenas are rebalanced
+	 * @param threshold
+	 *            the difference of pressures above which rebalance moves extents
+	 * @throws IllegalArgumentException
+	 *         if the threshold is not between 0 and 1
+	 */
+	public ArenaRebalancer(ConcurrentMemorySpace space, double threshold) {
+		if (threshold < 0 || threshold > 1) {
+			throw new IllegalArgumentException("threshold must be between 0 and 1");
+		}
+		this.space = space;
+		this.threshold = threshold;
+		space.setRebalancer(this);
+	}
+
+	/**
+	 * Called by the memory space when the given arena cannot satisfy a request of the given
+	 * length. Moves an extent into the arena from the arena under the least pressure that
+	 * has a long enough free extent, and retries the request in the arena.
+	 *
+	 * @param arena
+	 *            the index of the arena
+	 * @param length
+	 *            the length (in words) of the request
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	int onFailedMalloc(int arena, int length) {
+		failedMallocs.incrementAndGet();
+		boolean[] tried = spareless();
+		tried[arena] = true;
+		int donor;
+		while ((donor = leastPressured(tried)) >= 0) {
+			tried[donor] = true;
+			int words = space.migrateFreeExtent(donor, arena, length);
+			if (words > 0) {
+				recordMigration(words);
+				int address = space.mallocIn(arena, length);
+				if (address >= 0) {
+					keptHomeMallocs.incrementAndGet();
+				}
+				return address;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves free extents from the arenas under the least pressure to the arenas under the
+	 * most pressure, while their pressures differ by more than the threshold, moving at
+	 * most one extent out of each arena.
+	 *
+	 * @return the number of extents that were moved
+	 */
+	public int rebalance() {
+		int arenas = space.getArenaCount();
+		boolean[] done = new boolean[arenas];
+		boolean[] spareless = spareless();
+		int moved = 0;
+		for (int pass = 0; pass < arenas / 2; pass++) {
+			int donor = leastPressured(or(done, spareless));
+			if (donor < 0) {
+				break;
+			}
+			done[donor] = true;
+			int recipient = mostPressured(done);
+			if (recipient < 0) {
+				break;
+			}
+			done[recipient] = true;
+			if (space.estimateArenaPressure(recipient) - space.estimateArenaPressure(donor) <= threshold) {
+				break;
+			}
+			int words = space.migrateFreeExtent(donor, recipient, 0);
+			if (words > 0) {
+				recordMigration(words);
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Starts running rebalance on a background daemon thread, at the given period. Does
+	 * nothing if it is already running.
+	 *
+	 * @param period
+	 *            the time between two runs
+	 * @param unit
+	 *            the unit of the period
+	 */
+	public synchronized void start(long period, TimeUnit unit) {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "arena-rebalancer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleAtFixedRate(() -> {
+			// An exception that escaped would cancel all the later runs
+			try {
+				rebalance();
+				scheduledPasses.incrementAndGet();
+			} catch (RuntimeException e) {
+				failedPasses.incrementAndGet();
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * Stops the background thread, if it is running.
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/** Returns the number of extents that were moved between arenas. */
+	public long getMigrations() {
+		return migrations.get();
+	}
+
+	/** Returns the number of words of the extents that were moved between arenas. */
+	public long getMigratedWords() {
+		return migratedWords.get();
+	}
+
+	/** Returns the number of requests that their home arena could not satisfy. */
+	public long getFailedMallocs() {
+		return failedMallocs.get();
+	}
+
+	/**
+	 * Returns the number of those requests that succeeded in their home arena after an
+	 * extent was moved into it. Another arena might have satisfied some of them as well.
+	 */
+	public long getKeptHomeMallocs() {
+		return keptHomeMallocs.get();
+	}
+
+	/** Returns the number of times the background thread ran rebalance to completion. */
+	public long getScheduledPasses() {
+		return scheduledPasses.get();
+	}
+
+	/** Returns the number of times rebalance threw an exception on the background thread. */
+	public long getFailedPasses() {
+		return failedPasses.get();
+	}
+
+	/**
+	 * A textual representation of the metrics of this rebalancer.
+	 */
+	@Override
+	public String toString() {
+		return "migrations " + getMigrations() + ", migrated words " + getMigratedWords()
+				+ ", failed mallocs " + getFailedMallocs() + ", kept home " + getKeptHomeMallocs()
+				+ ", scheduled passes " + getScheduledPasses() + ", failed passes " + getFailedPasses();
+	}
+
+	private void recordMigration(int words) {
+		migrations.incrementAndGet();
+		migratedWords.addAndGet(words);
+	}
+
+	// Returns, for each arena, whether it has no extent to spare, since a donor keeps at
+	// least one extent.
+	private boolean[] spareless() {
+		boolean[] spareless = new boolean[space.getArenaCount()];
+		for (int i = 0; i < spareless.length; i++) {
+			spareless[i] = space.estimateExtentCount(i) <= 1;
+		}
+		return spareless;
+	}
+
+	// Returns the element-wise or of the given arrays.
+	private static boolean[] or(boolean[] a, boolean[] b) {
+		boolean[] result = new boolean[a.length];
+		for (int i = 0; i < a.length; i++) {
+			result[i] = a[i] || b[i];
+		}
+		return result;
+	}
+
+	// Returns the index of the arena under the least pressure among those not excluded,
+	// or -1 if all are excluded.
+	private int leastPressured(boolean[] excluded) {
+		int best = -1;
+		double bestPressure = 0;
+		for (int i = 0; i < excluded.length; i++) {
+			if (excluded[i]) {
+				continue;
+			}
+			double pressure = space.estimateArenaPressure(i);
+			if (best < 0 || pressure < bestPressure) {
+				best = i;
+				bestPressure = pressure;
+			}
+		}
+		return best;
+	}
+
+	// Returns the index of the arena under the most pressure among those not excluded,
+	// or -1 if all are excluded.
+	private int mostPressured(boolean[] excluded) {
+		int best = -1;
+		double bestPressure = 0;
+		for (int i = 0; i < excluded.length; i++) {
+			if (excluded[i]) {
+				continue;
+			}
+			double pressure = space.estimateArenaPressure(i);
+			if (best < 0 || pressure > bestPressure) {
+				best = i;
+				bestPressure = pressure;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,99 @@
+import java.util.TreeSet;
+
+/**
+ * An allocator engine that allocates from the smallest free block that is large
+ * enough for the request (best fit), breaking ties by the lowest base address.
+ * The free blocks are indexed by (length, baseAddress) in a balanced search tree,
+ * so the best fitting block is found in O(log n) time instead of by scanning a list.
+ */
+public class BestFitEngine implements AllocatorEngine {
+
+	// The memory blocks that are presently allocated
+	private AllocationTable allocated;
+
+	// The free memory blocks, ordered by length and then by base address.
+	// A block must be taken out of the tree before its length or address is changed.
+	private TreeSet<MemoryBlock> freeTree;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public BestFitEngine(int maxSize) {
+		allocated = new AllocationTable();
+		freeTree = new TreeSet<>((a, b) -> a.length != b.length
+				? Integer.compare(a.length, b.length)
+				: Integer.compare(a.baseAddress, b.baseAddress));
+		freeTree.add(new MemoryBlock(0, maxSize));
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the smallest free
+	 * block whose length is at least the requested length. Among free blocks of the
+	 * same length, the one with the lowest base address is used. The rest of the found
+	 * block stays free.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		MemoryBlock found = freeTree.ceiling(new MemoryBlock(Integer.MIN_VALUE, length));
+		if (found == null) {
+			return -1;
+		}
+		freeTree.remove(found);
+		MemoryBlock m = new MemoryBlock(found.baseAddress, length);
+		allocated.add(m);
+		if (found.length > length) {
+			found.baseAddress += length;
+			found.length -= length;
+			freeTree.add(found);
+		}
+		return m.baseAddress;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and adds it
+	 * to the tree of free blocks.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		MemoryBlock free = allocated.remove(address);
+		if (free != null) {
+			freeTree.add(free);
+		}
+	}
+
+	/**
+	 * Merges adjacent free blocks, and rebuilds the tree from the merged blocks.
+	 */
+	public void defrag() {
+		MemoryBlock[] blocks = freeTree.toArray(new MemoryBlock[freeTree.size()]);
+		freeTree.clear();
+		int merged = Coalescer.coalesce(blocks);
+		for (int i = 0; i < merged; i++) {
+			freeTree.add(blocks[i]);
+		}
+	}
+
+	/**
+	 * A textual representation of the free blocks, from the smallest to the largest,
+	 * and the allocated blocks of this engine, for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (MemoryBlock block : freeTree) {
+			str += block.toString() + " ";
+		}
+		return str + "\n" + allocated.toString();
+	}
+}
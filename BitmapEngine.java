@@ -0,0 +1,334 @@
+/**
+ * An allocator engine for fixed-granularity workloads, which divides the memory space
+ * into allocation units of a fixed number of words, and tracks each unit as one bit of
+ * a long[] bitmap (1 = allocated). Requests are rounded up to whole units.
+ * <p>
+ * malloc looks for the first run of free units that is long enough, testing 64 units
+ * at a time: a word that is all zeros extends the current run by 64 units, a word that
+ * is all ones ends it, and the free units at the bottom and the top of a mixed word are
+ * counted with Long.numberOfTrailingZeros and Long.numberOfLeadingZeros. Only when the
+ * request fits inside one word are the runs in the middle of a mixed word examined.
+ * free clears the bits of the block, so free blocks are merged implicitly, and defrag
+ * has no work to do.
+ * <p>
+ * The length of each allocated block is kept in a parallel array indexed by its first
+ * unit. The bitmap takes maxSize / (64 * unitSize) longs, however fragmented the memory
+ * becomes. Zero-length requests are given one word.
+ * <p>
+ * A lane scan tests LANES consecutive words at once, by OR-ing and AND-ing them: a
+ * group that is all free or all allocated is passed over as a whole, and only a mixed
+ * group is scanned word by word. This is the same test the Vector API does with
+ * LongVector lanes, written with plain longs, so the engine compiles and runs without the
+ * jdk.incubator.vector module. It pays off only when the groups are mostly all allocated
+ * and the request is long enough that a mixed group rarely holds it, and costs a little
+ * otherwise, so by default (ADAPTIVE_SCAN) malloc uses it only for requests of at least
+ * LANE_MIN_UNITS units while at least LANE_MIN_FILL of the units are allocated, and the
+ * word-at-a-time scan in all other cases. BitmapScanBenchmark shows where the two cross.
+ */
+public class BitmapEngine implements AllocatorEngine {
+
+	/** Scan mode in which malloc tests one bitmap word at a time. */
+	public static final int SCALAR_SCAN = 0;
+
+	/** Scan mode in which malloc tests LANES bitmap words at a time, then single words. */
+	public static final int LANE_SCAN = 1;
+
+	/** Scan mode in which malloc picks the lane scan for long requests in a full bitmap. */
+	public static final int ADAPTIVE_SCAN = 2;
+
+	/** The shortest request, in units, for which the adaptive mode uses the lane scan. */
+	public static final int LANE_MIN_UNITS = 128;
+
+	/** The fraction of allocated units from which the adaptive mode uses the lane scan. */
+	public static final double LANE_MIN_FILL = 0.9;
+
+	// The number of bitmap words that the lane scan tests at a time
+	private static final int LANES = 4;
+
+	// The number of words in an allocation unit
+	private int unitSize;
+
+	// One of SCALAR_SCAN, LANE_SCAN and ADAPTIVE_SCAN
+	private int scan;
+
+	// The number of allocation units in the memory space
+	private int unitCount;
+
+	// Bit u % 64 of bitmap[u / 64] is set if unit u is allocated. The bits past the
+	// last unit are set, so that they are never taken for free units.
+	private long[] bitmap;
+
+	// lengths[u] is the length of the allocated block that starts at unit u, or 0
+	private int[] lengths;
+
+	// The number of blocks that are presently allocated, and the number of their units
+	private int allocatedCount;
+	private int allocatedUnits;
+
+	// The number of allocated units from which the adaptive mode uses the lane scan
+	private int laneMinAllocated;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size,
+	 * with allocation units of one word.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public BitmapEngine(int maxSize) {
+		this(maxSize, 1);
+	}
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size,
+	 * with allocation units of the given size. The words past the last whole unit
+	 * are not used.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param unitSize
+	 *            the number of words in an allocation unit
+	 * @throws IllegalArgumentException
+	 *         if the unit size is not positive
+	 */
+	public BitmapEngine(int maxSize, int unitSize) {
+		this(maxSize, unitSize, ADAPTIVE_SCAN);
+	}
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size,
+	 * with allocation units of the given size. The words past the last whole unit
+	 * are not used.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param unitSize
+	 *            the number of words in an allocation unit
+	 * @param scan
+	 *            the scan mode: SCALAR_SCAN, LANE_SCAN or ADAPTIVE_SCAN
+	 * @throws IllegalArgumentException
+	 *         if the unit size is not positive, or the scan mode is unknown
+	 */
+	public BitmapEngine(int maxSize, int unitSize, int scan) {
+		if (unitSize <= 0) {
+			throw new IllegalArgumentException("unit size must be positive");
+		}
+		if (scan < SCALAR_SCAN || scan > ADAPTIVE_SCAN) {
+			throw new IllegalArgumentException("unknown scan mode " + scan);
+		}
+		this.unitSize = unitSize;
+		this.scan = scan;
+		this.unitCount = Math.max(0, maxSize / unitSize);
+		this.laneMinAllocated = (int) Math.ceil(LANE_MIN_FILL * unitCount);
+		bitmap = new long[(unitCount + 63) / 64];
+		lengths = new int[unitCount];
+		if (unitCount % 64 != 0) {
+			bitmap[bitmap.length - 1] = -1L << (unitCount % 64);
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), at the first run of
+	 * free units that is long enough.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		if (length == 0) {
+			length = 1;
+		}
+		int units = unitsOf(length);
+		if (units > unitCount) {
+			return -1;
+		}
+		boolean lanes = scan == LANE_SCAN
+				|| (scan == ADAPTIVE_SCAN && units >= LANE_MIN_UNITS && allocatedUnits >= laneMinAllocated);
+		int start = findFreeRun(units, lanes);
+		if (start < 0) {
+			return -1;
+		}
+		setRange(start, start + units, true);
+		lengths[start] = length;
+		allocatedCount++;
+		allocatedUnits += units;
+		return start * unitSize;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, by clearing
+	 * the bits of its units.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		if (allocatedCount == 0) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		if (address < 0 || address % unitSize != 0 || address / unitSize >= unitCount) {
+			return;
+		}
+		int start = address / unitSize;
+		if (lengths[start] == 0) {
+			return;
+		}
+		int units = unitsOf(lengths[start]);
+		setRange(start, start + units, false);
+		lengths[start] = 0;
+		allocatedCount--;
+		allocatedUnits -= units;
+	}
+
+	/**
+	 * Does nothing: adjacent free units form a single free run as soon as they are freed.
+	 */
+	public void defrag() {
+	}
+
+	/**
+	 * A textual representation of the free runs and the allocated blocks of this engine,
+	 * both in address order, for debugging purposes. The free runs are given in words.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder free = new StringBuilder();
+		StringBuilder used = new StringBuilder();
+		int runStart = -1;
+		for (int u = 0; u <= unitCount; u++) {
+			boolean isFree = u < unitCount && (bitmap[u >>> 6] & (1L << u)) == 0;
+			if (isFree && runStart < 0) {
+				runStart = u;
+			} else if (!isFree && runStart >= 0) {
+				free.append(new MemoryBlock(runStart * unitSize, (u - runStart) * unitSize)).append(" ");
+				runStart = -1;
+			}
+			if (u < unitCount && lengths[u] != 0) {
+				used.append(new MemoryBlock(u * unitSize, lengths[u])).append(" ");
+			}
+		}
+		return free + "\n" + used;
+	}
+
+	// Returns the first unit of the first run of at least the given number of free
+	// units, or -1 if there is no such run, testing LANES words at a time if asked to.
+	private int findFreeRun(int units, boolean lanes) {
+		int runStart = 0;
+		int runLength = 0;
+		int i = 0;
+		while (i < bitmap.length) {
+			int end = i + 1;
+			if (lanes && i + LANES <= bitmap.length) {
+				long any = bitmap[i] | bitmap[i + 1] | bitmap[i + 2] | bitmap[i + 3];
+				if (any == 0) {
+					if (runLength == 0) {
+						runStart = i << 6;
+					}
+					runLength += 64 * LANES;
+					if (runLength >= units) {
+						return runStart;
+					}
+					i += LANES;
+					continue;
+				}
+				long all = bitmap[i] & bitmap[i + 1] & bitmap[i + 2] & bitmap[i + 3];
+				if (all == -1L) {
+					runLength = 0;
+					i += LANES;
+					continue;
+				}
+				end = i + LANES;
+			}
+			for (; i < end; i++) {
+				long word = bitmap[i];
+				if (word == 0) {
+					if (runLength == 0) {
+						runStart = i << 6;
+					}
+					runLength += 64;
+					if (runLength >= units) {
+						return runStart;
+					}
+					continue;
+				}
+				if (word == -1L) {
+					runLength = 0;
+					continue;
+				}
+				// The free units at the bottom of the word continue the current run
+				int low = Long.numberOfTrailingZeros(word);
+				if (runLength + low >= units) {
+					return (runLength == 0) ? i << 6 : runStart;
+				}
+				// A run inside the word is bounded by allocated units on both sides
+				if (units <= 62) {
+					int inner = findInnerRun(word, units);
+					if (inner >= 0) {
+						return (i << 6) + inner;
+					}
+				}
+				// The free units at the top of the word start a new run
+				int high = Long.numberOfLeadingZeros(word);
+				runLength = high;
+				runStart = (i << 6) + 64 - high;
+				if (runLength > 0 && runLength >= units) {
+					return runStart;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// Returns the position of the first run of at least the given number of zero bits
+	// in the given word that has a one bit below it and a one bit above it, or -1.
+	private static int findInnerRun(long word, int units) {
+		int position = Long.numberOfTrailingZeros(word);
+		while (position < 64) {
+			// Skips the one bits, then counts the zero bits that follow them
+			position += Long.numberOfTrailingZeros(~(word >>> position));
+			if (position >= 64) {
+				return -1;
+			}
+			long rest = word >>> position;
+			if (rest == 0) {
+				return -1;
+			}
+			int zeros = Long.numberOfTrailingZeros(rest);
+			if (zeros >= units) {
+				return position;
+			}
+			position += zeros;
+		}
+		return -1;
+	}
+
+	// Sets or clears the bits of the units from the first unit (inclusive) to the last
+	// unit (exclusive).
+	private void setRange(int from, int to, boolean allocated) {
+		int first = from >>> 6;
+		int last = (to - 1) >>> 6;
+		for (int i = first; i <= last; i++) {
+			long mask = -1L;
+			if (i == first) {
+				mask &= -1L << from;
+			}
+			if (i == last) {
+				mask &= -1L >>> (63 - ((to - 1) & 63));
+			}
+			if (allocated) {
+				bitmap[i] |= mask;
+			} else {
+				bitmap[i] &= ~mask;
+			}
+		}
+	}
+
+	// Returns the number of units needed for a block of the given length.
+	private int unitsOf(int length) {
+		return (int) (((long) length + unitSize - 1) / unitSize);
+	}
+}
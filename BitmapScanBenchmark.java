@@ -0,0 +1,82 @@
+/**
+ * Compares the word-at-a-time and the lane-scanning free-run search of BitmapEngine, and
+ * the adaptive mode that picks one of them for each malloc.
+ * For each fill ratio, the memory space is filled with blocks of random lengths and a
+ * random subset of them is freed until the given ratio of the space is allocated; all
+ * modes get the same fill. Then a malloc of the given run length, followed by a free of
+ * the block, is timed many times, and the program prints the average time of a pair,
+ * and the speed-up of the lane and the adaptive modes over the word-at-a-time scan.
+ * <p>
+ * Usage: java BitmapScanBenchmark [maxSize] [operations]
+ */
+public class BitmapScanBenchmark {
+
+	// The run lengths requested by the timed mallocs
+	private static final int[] RUN_LENGTHS = { 8, 64, 128, 256, 512, 4096 };
+
+	// The ratios of the memory space that are allocated while timing
+	private static final double[] FILL_RATIOS = { 0, 0.5, 0.75, 0.9, 0.99 };
+
+	// The largest block length used to fill the memory space
+	private static final int MAX_FILL_LENGTH = 16;
+
+	// The number of untimed rounds that run before the measured one
+	private static final int WARMUP_ROUNDS = 2;
+
+	public static void main(String[] args) {
+		int maxSize = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		System.out.println("max size: " + maxSize + ", operations: " + operations);
+		System.out.printf("%6s %8s %12s %12s %12s %8s %8s%n", "fill", "run", "scalar ns", "lanes ns",
+				"adaptive ns", "lanes", "adaptive");
+		for (double fill : FILL_RATIOS) {
+			for (int runLength : RUN_LENGTHS) {
+				long scalar = 0;
+				long lanes = 0;
+				long adaptive = 0;
+				for (int i = 0; i <= WARMUP_ROUNDS; i++) {
+					scalar = run(new BitmapEngine(maxSize, 1, BitmapEngine.SCALAR_SCAN), maxSize, fill, runLength, operations);
+					lanes = run(new BitmapEngine(maxSize, 1, BitmapEngine.LANE_SCAN), maxSize, fill, runLength, operations);
+					adaptive = run(new BitmapEngine(maxSize, 1, BitmapEngine.ADAPTIVE_SCAN), maxSize, fill, runLength,
+							operations);
+				}
+				System.out.printf("%6.2f %8d %12d %12d %12d %8.2f %8.2f%n", fill, runLength, scalar / operations,
+						lanes / operations, adaptive / operations, (double) scalar / lanes, (double) scalar / adaptive);
+			}
+		}
+	}
+
+	// Fills the engine, which manages a space of the given size, to the given ratio, times the given number of malloc and free
+	// pairs of the given length, and returns the total time in nanoseconds.
+	private static long run(BitmapEngine engine, int maxSize, double fill, int runLength, int operations) {
+		java.util.Random random = new java.util.Random(42);
+		int[] blocks = new int[maxSize];
+		int[] lengths = new int[maxSize];
+		int count = 0;
+		int allocated = 0;
+		for (int address = 0; address < maxSize;) {
+			int length = Math.min(1 + random.nextInt(MAX_FILL_LENGTH), maxSize - address);
+			blocks[count] = engine.malloc(length);
+			lengths[count++] = length;
+			allocated += length;
+			address += length;
+		}
+		for (int i = count - 1; i >= 0 && allocated > fill * maxSize; i--) {
+			int j = random.nextInt(i + 1);
+			int block = blocks[j];
+			int length = lengths[j];
+			blocks[j] = blocks[i];
+			lengths[j] = lengths[i];
+			engine.free(block);
+			allocated -= length;
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			int address = engine.malloc(runLength);
+			if (address >= 0) {
+				engine.free(address);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
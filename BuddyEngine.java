@@ -0,0 +1,171 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * An allocator engine that implements the binary buddy system. Every block has a
+ * power-of-two size 2^k (its order k), and starts at an address that is a multiple
+ * of its size. A request is rounded up to the next power of two, and is served by
+ * splitting a larger free block in halves as many times as needed. The other half
+ * of each split, the "buddy", stays free.
+ * <p>
+ * The buddy of the block of order k at address a is at address a ^ 2^k. When a block
+ * is freed and its buddy is also free, the two are merged into one block of order k+1,
+ * and so on upwards. Free blocks are therefore always coalesced, and defrag has no
+ * work to do. A memory space whose size is not a power of two is divided into the
+ * largest aligned powers of two that fit, e.g. 100 = 64 + 32 + 4, and these are never
+ * merged with each other.
+ * <p>
+ * The rounding wastes memory inside the allocated blocks (internal fragmentation).
+ * The engine keeps count of the requested and the reserved words, so the cost can
+ * be compared with the exact-size blocks of the other engines.
+ */
+public class BuddyEngine implements AllocatorEngine {
+
+	// The memory blocks that are presently allocated, with their requested lengths
+	private AllocationTable allocated;
+
+	// freeAreas.get(k) holds the base addresses of the free blocks of order k
+	private List<LinkedHashSet<Integer>> freeAreas;
+
+	// The total number of words requested by the allocated blocks
+	private long requestedWords;
+
+	// The total number of words reserved for the allocated blocks, after rounding
+	private long reservedWords;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public BuddyEngine(int maxSize) {
+		allocated = new AllocationTable();
+		int maxOrder = maxSize <= 1 ? 0 : 31 - Integer.numberOfLeadingZeros(maxSize);
+		freeAreas = new ArrayList<>();
+		for (int k = 0; k <= maxOrder; k++) {
+			freeAreas.add(new LinkedHashSet<>());
+		}
+		int address = 0;
+		for (int k = maxOrder; k >= 0; k--) {
+			if ((maxSize & (1 << k)) != 0) {
+				freeAreas.get(k).add(address);
+				address += 1 << k;
+			}
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). The length is rounded
+	 * up to the next power of two, and the smallest free block that is large enough is
+	 * split until a block of the rounded size is left.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		int order = orderOf(length);
+		int k = order;
+		while (k < freeAreas.size() && freeAreas.get(k).isEmpty()) {
+			k++;
+		}
+		if (k >= freeAreas.size()) {
+			return -1;
+		}
+		Iterator<Integer> itr = freeAreas.get(k).iterator();
+		int address = itr.next();
+		itr.remove();
+		while (k > order) {
+			k--;
+			freeAreas.get(k).add(address + (1 << k));
+		}
+		allocated.add(new MemoryBlock(address, length));
+		requestedWords += length;
+		reservedWords += 1 << order;
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and merges
+	 * it with its buddy for as long as the buddy is free too.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		MemoryBlock free = allocated.remove(address);
+		if (free == null) {
+			return;
+		}
+		int order = orderOf(free.length);
+		requestedWords -= free.length;
+		reservedWords -= 1 << order;
+		while (order < freeAreas.size() - 1 && freeAreas.get(order).remove(address ^ (1 << order))) {
+			address &= ~(1 << order);
+			order++;
+		}
+		freeAreas.get(order).add(address);
+	}
+
+	/**
+	 * Does nothing: free blocks are merged with their buddies as soon as they are freed.
+	 */
+	public void defrag() {
+	}
+
+	/**
+	 * Gets the number of words that are reserved for the allocated blocks but were not
+	 * requested, because the requested lengths were rounded up to powers of two.
+	 * @return The internal fragmentation, in words.
+	 */
+	public long getInternalFragmentation() {
+		return reservedWords - requestedWords;
+	}
+
+	/**
+	 * Gets the total number of words requested by the presently allocated blocks.
+	 * @return The requested words.
+	 */
+	public long getRequestedWords() {
+		return requestedWords;
+	}
+
+	/**
+	 * Gets the total number of words reserved for the presently allocated blocks.
+	 * @return The reserved words.
+	 */
+	public long getReservedWords() {
+		return reservedWords;
+	}
+
+	/**
+	 * A textual representation of the free blocks, from the smallest order to the
+	 * largest, and the allocated blocks of this engine with their requested lengths,
+	 * for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (int k = 0; k < freeAreas.size(); k++) {
+			for (int address : freeAreas.get(k)) {
+				str += new MemoryBlock(address, 1 << k) + " ";
+			}
+		}
+		return str + "\n" + allocated.toString();
+	}
+
+	// Returns the order of the smallest power of two that is at least the given length.
+	// Lengths that cannot be rounded to an int power of two get an order that is never free.
+	private int orderOf(int length) {
+		if (length <= 1) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+}
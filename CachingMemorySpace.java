@@ -0,0 +1,367 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread-safe memory space that keeps a cache of recently freed blocks for each
+ * thread, in front of a ConcurrentMemorySpace. Requests of up to MAX_CACHED_LENGTH
+ * words are rounded up to a power of two (their size class), and a freed block is
+ * pushed on a stack of its class in the cache of the freeing thread, where the next
+ * malloc of the same class by that thread finds it without taking any lock. Longer
+ * requests go straight to the shared memory space.
+ * <p>
+ * When the stack of a class grows past the high-water mark, the older half of it is
+ * freed back to the shared memory space in one batch. There is no hook that runs when
+ * a thread exits, so a thread should call flushThreadCache before it exits; the caches
+ * of threads that exited without doing so are reclaimed by reclaimDeadThreadCaches,
+ * which malloc also calls before it gives up on a request.
+ * <p>
+ * Unlike MemorySpace, freeing an address that is not the base address of an allocated
+ * block is always ignored, since a block may be allocated as far as the shared memory
+ * space is concerned while it waits in a cache. To tell them apart, the size class of
+ * each block that malloc handed out is kept in an AddressIndex keyed by its base
+ * address. The index is split into CLASS_STRIPES stripes by a hash of the address,
+ * each with its own monitor, so threads seldom wait for each other on it.
+ */
+public class CachingMemorySpace {
+
+	/** The longest request that is served through the thread caches. */
+	public static final int MAX_CACHED_LENGTH = 256;
+
+	/** The default number of blocks a stack may hold before it is flushed. */
+	public static final int DEFAULT_HIGH_WATER = 32;
+
+	// The number of size classes: lengths 1, 2, 4, ... MAX_CACHED_LENGTH
+	private static final int CLASS_COUNT = 32 - Integer.numberOfLeadingZeros(MAX_CACHED_LENGTH - 1) + 1;
+
+	// The size class of a block whose length is not rounded, and that is never cached
+	private static final int UNCACHED = CLASS_COUNT;
+
+	// log2 of the number of stripes of the size classes of the handed-out blocks
+	private static final int CLASS_STRIPE_BITS = 6;
+
+	// The number of stripes of the size classes of the handed-out blocks
+	private static final int CLASS_STRIPES = 1 << CLASS_STRIPE_BITS;
+
+	/**
+	 * The cache statistics of one thread, as read at some moment. The counts of a thread
+	 * that is still running may lag a little behind its latest calls.
+	 */
+	public static final class CacheStats {
+		private final String threadName;
+		private final long hits;
+		private final long misses;
+		private final long flushedBlocks;
+		private final int cachedBlocks;
+
+		CacheStats(String threadName, long hits, long misses, long flushedBlocks, int cachedBlocks) {
+			this.threadName = threadName;
+			this.hits = hits;
+			this.misses = misses;
+			this.flushedBlocks = flushedBlocks;
+			this.cachedBlocks = cachedBlocks;
+		}
+
+		/** Returns the name of the thread. */
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/** Returns the number of cacheable mallocs that were served from the cache. */
+		public long getHits() {
+			return hits;
+		}
+
+		/** Returns the number of cacheable mallocs that went to the shared memory space. */
+		public long getMisses() {
+			return misses;
+		}
+
+		/** Returns the number of blocks flushed from the cache to the shared memory space. */
+		public long getFlushedBlocks() {
+			return flushedBlocks;
+		}
+
+		/** Returns the number of blocks in the cache. */
+		public int getCachedBlocks() {
+			return cachedBlocks;
+		}
+
+		/** Returns the ratio of hits to cacheable mallocs, or 0 if there were none. */
+		public double getHitRate() {
+			long total = hits + misses;
+			return (total == 0) ? 0 : (double) hits / total;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: hits %d, misses %d, hit rate %.3f, flushed %d, cached %d",
+					threadName, hits, misses, getHitRate(), flushedBlocks, cachedBlocks);
+		}
+	}
+
+	// The cache of one thread: a stack of base addresses for each size class. Only the
+	// owner thread touches it, until the owner exits.
+	private static final class ThreadCache {
+		final Thread owner;
+		final int[][] stacks;
+		final int[] counts = new int[CLASS_COUNT];
+		long hits;
+		long misses;
+		long flushedBlocks;
+
+		ThreadCache(Thread owner, int highWater) {
+			this.owner = owner;
+			stacks = new int[CLASS_COUNT][highWater + 1];
+		}
+
+		int cachedBlocks() {
+			int total = 0;
+			for (int count : counts) {
+				total += count;
+			}
+			return total;
+		}
+	}
+
+	// The shared memory space
+	private final ConcurrentMemorySpace shared;
+
+	// The number of blocks a stack may hold before it is flushed
+	private final int highWater;
+
+	// The size class of each block that was handed out by malloc and not freed yet, by
+	// base address, in stripes that are guarded by their own monitors
+	private final AddressIndex[] classes = new AddressIndex[CLASS_STRIPES];
+
+	// The caches of all the threads that used this memory space and were not reclaimed
+	private final ConcurrentLinkedQueue<ThreadCache> caches = new ConcurrentLinkedQueue<>();
+
+	// The cache of the current thread
+	private final ThreadLocal<ThreadCache> cache;
+
+	/**
+	 * Constructs a new caching memory space of a given maximal size, in front of a
+	 * shared memory space with the given number of first-fit arenas.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param arenaCount
+	 *            the number of arenas of the shared memory space
+	 */
+	public CachingMemorySpace(int maxSize, int arenaCount) {
+		this(new ConcurrentMemorySpace(maxSize, arenaCount), DEFAULT_HIGH_WATER);
+	}
+
+	/**
+	 * Constructs a new caching memory space in front of the given shared memory space,
+	 * which must not be used directly afterwards.
+	 *
+	 * @param shared
+	 *            the shared memory space
+	 * @param highWater
+	 *            the number of blocks of a size class a thread may cache before the
+	 *            older half of them is flushed to the shared memory space
+	 * @throws IllegalArgumentException
+	 *         if the high-water mark is less than 2
+	 */
+	public CachingMemorySpace(ConcurrentMemorySpace shared, int highWater) {
+		if (highWater < 2) {
+			throw new IllegalArgumentException("high water must be at least 2");
+		}
+		this.shared = shared;
+		this.highWater = highWater;
+		for (int i = 0; i < CLASS_STRIPES; i++) {
+			classes[i] = new AddressIndex();
+		}
+		cache = ThreadLocal.withInitial(() -> {
+			ThreadCache threadCache = new ThreadCache(Thread.currentThread(), highWater);
+			caches.add(threadCache);
+			return threadCache;
+		});
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). A request of up to
+	 * MAX_CACHED_LENGTH words is rounded up to a power of two and served from the cache
+	 * of the current thread if it holds a block of that size.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		int sizeClass = classOf(length);
+		int address;
+		if (sizeClass == UNCACHED) {
+			address = mallocShared(length);
+		} else {
+			ThreadCache threadCache = cache.get();
+			int count = threadCache.counts[sizeClass];
+			if (count > 0) {
+				threadCache.hits++;
+				threadCache.counts[sizeClass] = count - 1;
+				address = threadCache.stacks[sizeClass][count - 1];
+			} else {
+				threadCache.misses++;
+				address = mallocShared(1 << sizeClass);
+			}
+		}
+		if (address >= 0) {
+			AddressIndex stripe = classes[stripeOf(address)];
+			synchronized (stripe) {
+				stripe.add(address, sizeClass);
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address. A block of a
+	 * cached size class goes to the cache of the current thread.
+	 *
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		int sizeClass;
+		AddressIndex stripe = classes[stripeOf(address)];
+		synchronized (stripe) {
+			int slot = stripe.find(address);
+			if (slot < 0) {
+				return;
+			}
+			sizeClass = stripe.getValue(slot);
+			stripe.remove(slot);
+		}
+		if (sizeClass == UNCACHED) {
+			shared.free(address);
+			return;
+		}
+		ThreadCache threadCache = cache.get();
+		int count = threadCache.counts[sizeClass];
+		threadCache.stacks[sizeClass][count] = address;
+		threadCache.counts[sizeClass] = ++count;
+		if (count > highWater) {
+			flush(threadCache, sizeClass, count / 2);
+		}
+	}
+
+	/**
+	 * Frees all the blocks in the cache of the current thread to the shared memory space.
+	 * A thread should call this method before it exits.
+	 */
+	public void flushThreadCache() {
+		ThreadCache threadCache = cache.get();
+		for (int sizeClass = 0; sizeClass < CLASS_COUNT; sizeClass++) {
+			flush(threadCache, sizeClass, threadCache.counts[sizeClass]);
+		}
+	}
+
+	/**
+	 * Frees all the blocks in the caches of threads that exited, to the shared memory
+	 * space, and forgets those caches.
+	 *
+	 * @return the number of caches that were reclaimed
+	 */
+	public int reclaimDeadThreadCaches() {
+		int reclaimed = 0;
+		for (ThreadCache threadCache : caches) {
+			// Seeing the owner dead orders its last writes to the cache before ours, and
+			// only the thread that removes the cache from the queue flushes it
+			if (!threadCache.owner.isAlive() && caches.remove(threadCache)) {
+				for (int sizeClass = 0; sizeClass < CLASS_COUNT; sizeClass++) {
+					flush(threadCache, sizeClass, threadCache.counts[sizeClass]);
+				}
+				reclaimed++;
+			}
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * Returns the cache statistics of the current thread.
+	 * @return The statistics.
+	 */
+	public CacheStats getThreadStats() {
+		return statsOf(cache.get());
+	}
+
+	/**
+	 * Returns the cache statistics of every thread whose cache was not reclaimed.
+	 * @return The statistics, one entry per thread.
+	 */
+	public List<CacheStats> getAllThreadStats() {
+		List<CacheStats> stats = new ArrayList<>();
+		for (ThreadCache threadCache : caches) {
+			stats.add(statsOf(threadCache));
+		}
+		return stats;
+	}
+
+	/**
+	 * Flushes the cache of the current thread and the caches of threads that exited,
+	 * and performs defragmantation of the shared memory space. The caches of other
+	 * running threads are left as they are.
+	 */
+	public void defrag() {
+		flushThreadCache();
+		reclaimDeadThreadCaches();
+		shared.defrag();
+	}
+
+	/**
+	 * A textual representation of the shared memory space, for debugging purposes.
+	 * Blocks that wait in a thread cache are shown as allocated.
+	 */
+	@Override
+	public String toString() {
+		return shared.toString();
+	}
+
+	// Allocates from the shared memory space, and if that fails, reclaims the caches of
+	// threads that exited and tries again.
+	private int mallocShared(int length) {
+		int address = shared.malloc(length);
+		if (address < 0 && reclaimDeadThreadCaches() > 0) {
+			address = shared.malloc(length);
+		}
+		return address;
+	}
+
+	// Frees the given number of blocks from the bottom of a stack of the given cache,
+	// which hold the blocks that were freed the longest time ago.
+	private void flush(ThreadCache threadCache, int sizeClass, int blocks) {
+		if (blocks == 0) {
+			return;
+		}
+		int[] stack = threadCache.stacks[sizeClass];
+		int count = threadCache.counts[sizeClass];
+		shared.freeAll(stack, 0, blocks);
+		System.arraycopy(stack, blocks, stack, 0, count - blocks);
+		threadCache.counts[sizeClass] = count - blocks;
+		threadCache.flushedBlocks += blocks;
+	}
+
+	private static CacheStats statsOf(ThreadCache threadCache) {
+		return new CacheStats(threadCache.owner.getName(), threadCache.hits, threadCache.misses,
+				threadCache.flushedBlocks, threadCache.cachedBlocks());
+	}
+
+	// Returns the stripe of the size classes that holds the given address.
+	private static int stripeOf(int address) {
+		return (address * 0x9E3779B9) >>> (32 - CLASS_STRIPE_BITS);
+	}
+
+	// Returns the size class of the given non-negative length: the log of the length rounded up to a
+	// power of two, or UNCACHED for lengths above MAX_CACHED_LENGTH.
+	private static int classOf(int length) {
+		if (length > MAX_CACHED_LENGTH) {
+			return UNCACHED;
+		}
+		return (length <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+}
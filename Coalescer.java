@@ -0,0 +1,32 @@
+/**
+ * Merges adjacent free memory blocks. Used by the allocator engines whose free
+ * blocks are not kept in address order, to implement defrag with a single sort
+ * followed by a single sweep.
+ */
+public class Coalescer {
+
+	/**
+	 * Sorts the given blocks by base address, and merges every run of adjacent blocks
+	 * into the first block of the run. The merged blocks are moved to the beginning of
+	 * the array, in address order.
+	 * 
+	 * @param blocks
+	 *        the free blocks to merge; the array is reordered by this method
+	 * @return the number of merged blocks, at the beginning of the array
+	 */
+	public static int coalesce(MemoryBlock[] blocks) {
+		java.util.Arrays.sort(blocks, (a, b) -> Integer.compare(a.baseAddress, b.baseAddress));
+		int count = 0;
+		for (int i = 0; i < blocks.length; i++) {
+			if (count > 0) {
+				MemoryBlock run = blocks[count - 1];
+				if (run.baseAddress + run.length == blocks[i].baseAddress) {
+					run.length += blocks[i].length;
+					continue;
+				}
+			}
+			blocks[count++] = blocks[i];
+		}
+		return count;
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Decides whether a MemorySpace calls defrag and retries when malloc fails, and keeps
+ * the metrics of those decisions. A defrag only merges free blocks that are adjacent, so
+ * it is worth its cost only if blocks were freed since the last defrag, and the policy
+ * skips it otherwise. In addition, each defrag that does not save the request makes the
+ * policy skip the next 1, 3, 7, ... failed requests (up to MAX_BACKOFF), and the first
+ * defrag that saves a request ends the backoff. So a workload that is really out of
+ * memory runs a defrag now and then, instead of on every call, and a workload whose
+ * memory is merely fragmented gets its defrag on the first failure.
+ * <p>
+ * The backoff only holds for requests at least as long as the shortest one that a defrag
+ * did not save: a defrag that cannot find room for 50 words says nothing about 20, so a
+ * shorter request still gets its defrag, and a fruitless one lowers the bound.
+ * <p>
+ * The policy also weighs what recent defrags cost against what they saved: it keeps
+ * moving averages of the time of a defrag and of the share of defrags that saved their
+ * request, and so of the time spent per saved request. While that cost is above a
+ * threshold, the policy skips failed requests of any length, as many as the cost is a
+ * multiple of the threshold (up to MAX_BACKOFF), so that the time of the defrags
+ * amortized over the failed requests stays near the threshold. Before any recent defrag
+ * saved a request, only the backoff above applies. A policy belongs to a single memory
+ * space.
+ */
+public class CompactionPolicy {
+
+	/** The largest number of failed requests that are skipped after a fruitless defrag. */
+	public static final int MAX_BACKOFF = 1024;
+
+	/** The default time that a defrag may take per request that it saves, in nanoseconds. */
+	public static final long DEFAULT_MAX_NANOS_PER_RESCUE = 10_000_000;
+
+	// The weight of the latest defrag in the moving averages
+	private static final double RECENT_WEIGHT = 0.25;
+
+	private final long maxNanosPerRescue;
+
+	// The number of frees since the last defrag, automatic or not; the policy may be given
+	// to a memory space that had frees already, so it starts as if it had seen one
+	private long freesSinceDefrag = 1;
+
+	// The number of automatic defrags in a row that did not save their request, the
+	// number of failed requests that are still to be skipped because of them, and the
+	// shortest request that they did not save, below which nothing is skipped
+	private int fruitlessDefrags;
+	private int backoff;
+	private int fruitlessLength = Integer.MAX_VALUE;
+
+	// The moving averages of the time of an automatic defrag and of the share of them that
+	// saved their request, and the number of failed requests that are still to be skipped
+	// because the time per saved request is above the threshold
+	private double recentNanos;
+	private double recentRescueRate;
+	private int costBackoff;
+
+	// The metrics
+	private long failures;
+	private long defrags;
+	private long rescues;
+	private long skippedUnchanged;
+	private long skippedBackoff;
+	private long skippedCost;
+	private long defragNanos;
+
+	/**
+	 * Creates a policy that allows DEFAULT_MAX_NANOS_PER_RESCUE per saved request.
+	 */
+	public CompactionPolicy() {
+		this(DEFAULT_MAX_NANOS_PER_RESCUE);
+	}
+
+	/**
+	 * Creates a policy that allows the given time of defrags per saved request.
+	 *
+	 * @param maxNanosPerRescue
+	 *            the time, in nanoseconds, above which the recent defrags are too costly
+	 *            for what they saved
+	 * @throws IllegalArgumentException
+	 *         if maxNanosPerRescue is not positive
+	 */
+	public CompactionPolicy(long maxNanosPerRescue) {
+		if (maxNanosPerRescue <= 0) {
+			throw new IllegalArgumentException("maxNanosPerRescue must be positive");
+		}
+		this.maxNanosPerRescue = maxNanosPerRescue;
+	}
+
+	/**
+	 * Called when malloc fails, to decide whether to defrag and retry.
+	 *
+	 * @param length
+	 *            the requested length
+	 * @return true if malloc should call defrag and retry, false if it should give up
+	 */
+	public boolean shouldDefrag(int length) {
+		failures++;
+		if (freesSinceDefrag == 0) {
+			skippedUnchanged++;
+			return false;
+		}
+		if (costBackoff > 0) {
+			costBackoff--;
+			skippedCost++;
+			return false;
+		}
+		if (backoff > 0 && length >= fruitlessLength) {
+			backoff--;
+			skippedBackoff++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called after an automatic defrag and the retry of the request.
+	 *
+	 * @param length
+	 *            the requested length
+	 * @param nanos
+	 *            the time that the defrag and the retry took, in nanoseconds
+	 * @param succeeded
+	 *            true if the retry allocated the block
+	 */
+	public void recordDefrag(int length, long nanos, boolean succeeded) {
+		defragNanos += nanos;
+		if (defrags++ == 0) {
+			recentNanos = nanos;
+			recentRescueRate = succeeded ? 1 : 0;
+		} else {
+			recentNanos += RECENT_WEIGHT * (nanos - recentNanos);
+			recentRescueRate += RECENT_WEIGHT * ((succeeded ? 1 : 0) - recentRescueRate);
+		}
+		double multiple = getNanosPerRescue() / maxNanosPerRescue;
+		costBackoff = recentRescueRate > 0 ? (int) Math.min(multiple, MAX_BACKOFF) : 0;
+		if (succeeded) {
+			rescues++;
+			fruitlessDefrags = 0;
+			backoff = 0;
+			fruitlessLength = Integer.MAX_VALUE;
+		} else {
+			fruitlessDefrags = Math.min(fruitlessDefrags + 1, 31);
+			backoff = (int) Math.min((1L << fruitlessDefrags) - 1, MAX_BACKOFF);
+			fruitlessLength = Math.min(fruitlessLength, length);
+		}
+	}
+
+	/**
+	 * Called when a block is freed.
+	 */
+	public void onFree() {
+		freesSinceDefrag++;
+	}
+
+	/**
+	 * Called when the memory space is defragmented, automatically or not.
+	 */
+	public void onDefrag() {
+		freesSinceDefrag = 0;
+	}
+
+	/** Returns the number of mallocs that failed before the policy was asked. */
+	public long getFailures() {
+		return failures;
+	}
+
+	/** Returns the number of automatic defrags. */
+	public long getDefrags() {
+		return defrags;
+	}
+
+	/** Returns the number of mallocs that succeeded after an automatic defrag. */
+	public long getRescues() {
+		return rescues;
+	}
+
+	/** Returns the number of defrags skipped since nothing was freed after the last one. */
+	public long getSkippedUnchanged() {
+		return skippedUnchanged;
+	}
+
+	/** Returns the number of defrags skipped while backing off. */
+	public long getSkippedBackoff() {
+		return skippedBackoff;
+	}
+
+	/** Returns the number of defrags skipped since recent defrags cost too much per rescue. */
+	public long getSkippedCost() {
+		return skippedCost;
+	}
+
+	/** Returns the total time of the automatic defrags and their retries, in nanoseconds. */
+	public long getDefragNanos() {
+		return defragNanos;
+	}
+
+	/**
+	 * Returns the recent time of the automatic defrags per request that they saved, in
+	 * nanoseconds, or positive infinity if none of them saved a request.
+	 */
+	public double getNanosPerRescue() {
+		return recentRescueRate > 0 ? recentNanos / recentRescueRate : Double.POSITIVE_INFINITY;
+	}
+
+	/** Returns the time of defrags per saved request above which the policy skips them. */
+	public long getMaxNanosPerRescue() {
+		return maxNanosPerRescue;
+	}
+
+	/** Returns the number of failed mallocs that the policy will still skip. */
+	public int getBackoff() {
+		return backoff;
+	}
+
+	/** Returns the number of failed mallocs that the policy will still skip for their cost. */
+	public int getCostBackoff() {
+		return costBackoff;
+	}
+
+	/** Returns the shortest length that the backoff holds for, or Integer.MAX_VALUE if none. */
+	public int getBackoffLength() {
+		return backoff > 0 ? fruitlessLength : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * A textual representation of the metrics of this policy.
+	 */
+	@Override
+	public String toString() {
+		return String.format("failures %d, defrags %d, rescues %d, skipped unchanged %d, skipped backoff %d, "
+				+ "skipped cost %d, defrag time %d ns", failures, defrags, rescues, skippedUnchanged, skippedBackoff,
+				skippedCost, defragNanos);
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Measures the throughput of malloc and free when many threads share one memory space.
+ * Each thread repeatedly allocates a block of random length and frees one of its own
+ * live blocks, keeping a fixed number of them live. The workload runs on a MemorySpace
+ * guarded by a single lock, on a ConcurrentMemorySpace with one arena per thread, and
+ * on a CachingMemorySpace in front of such a ConcurrentMemorySpace. The program prints
+ * the calls per millisecond of each, for 1, 2, 4, ... threads, and the average hit rate
+ * of the thread caches.
+ * <p>
+ * Usage: java ConcurrentBenchmark [maxThreads] [operationsPerThread]
+ */
+public class ConcurrentBenchmark {
+
+	// The largest block length requested by the workload
+	private static final int MAX_LENGTH = 64;
+
+	// The number of blocks that each thread keeps live
+	private static final int LIVE_BLOCKS = 256;
+
+	// The engine of both memory spaces; it merges free blocks as they are freed, so the
+	// workload does not need defrag
+	private static final String ENGINE = "first-fit-tree";
+
+	// The number of untimed rounds that run before the measured one
+	private static final int WARMUP_ROUNDS = 2;
+
+	// The memory operations under test
+	private interface Space {
+		int malloc(int length);
+		void free(int address);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+				: Runtime.getRuntime().availableProcessors();
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		System.out.println("operations per thread: " + operations);
+		System.out.printf("%8s %14s %14s %14s %9s%n",
+				"threads", "locked ops/ms", "arenas ops/ms", "cached ops/ms", "hit rate");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			int maxSize = 2 * threads * LIVE_BLOCKS * MAX_LENGTH;
+			double locked = 0;
+			double arenas = 0;
+			double cached = 0;
+			double hitRate = 0;
+			for (int i = 0; i <= WARMUP_ROUNDS; i++) {
+				MemorySpace memory = new MemorySpace(maxSize, ENGINE);
+				locked = run(new Space() {
+					public synchronized int malloc(int length) {
+						return memory.malloc(length);
+					}
+
+					public synchronized void free(int address) {
+						memory.free(address);
+					}
+				}, threads, operations);
+				ConcurrentMemorySpace concurrent = new ConcurrentMemorySpace(maxSize, threads, ENGINE);
+				arenas = run(new Space() {
+					public int malloc(int length) {
+						return concurrent.malloc(length);
+					}
+
+					public void free(int address) {
+						concurrent.free(address);
+					}
+				}, threads, operations);
+				CachingMemorySpace caching = new CachingMemorySpace(
+						new ConcurrentMemorySpace(maxSize, threads, ENGINE),
+						CachingMemorySpace.DEFAULT_HIGH_WATER);
+				cached = run(new Space() {
+					public int malloc(int length) {
+						return caching.malloc(length);
+					}
+
+					public void free(int address) {
+						caching.free(address);
+					}
+				}, threads, operations);
+				hitRate = 0;
+				for (CachingMemorySpace.CacheStats stats : caching.getAllThreadStats()) {
+					hitRate += stats.getHitRate() / threads;
+				}
+			}
+			System.out.printf("%8d %14.0f %14.0f %14.0f %9.3f%n", threads, locked, arenas, cached, hitRate);
+		}
+	}
+
+	// Runs the workload on the given space with the given number of threads, and
+	// returns the number of calls per millisecond.
+	private static double run(Space space, int threads, int operations) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			long seed = t;
+			workers[t] = new Thread(() -> {
+				java.util.Random random = new java.util.Random(seed);
+				int[] live = new int[LIVE_BLOCKS];
+				java.util.Arrays.fill(live, -1);
+				for (int i = 0; i < operations; i++) {
+					int slot = random.nextInt(LIVE_BLOCKS);
+					if (live[slot] >= 0) {
+						space.free(live[slot]);
+					}
+					live[slot] = space.malloc(1 + random.nextInt(MAX_LENGTH));
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		return 2.0 * threads * operations / (elapsed / 1e6);
+	}
+}
@@ -0,0 +1,589 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A managed memory space that can be used by many threads at once. The address range
+ * is split into a number of arenas, and each arena has its own lock, so threads that
+ * use different arenas do not wait for each other. An arena owns one or more extents:
+ * address ranges of equal size (the last extent also takes the remainder), each with
+ * its own engine. Blocks never span two extents, so a request longer than an extent
+ * fails.
+ * <p>
+ * Each thread is assigned a home arena the first time it calls malloc, round-robin, and
+ * allocates from it. When the home arena cannot satisfy a request, the rebalancer of the
+ * memory space, if there is one, may move a free extent into it (see ArenaRebalancer),
+ * and otherwise the other arenas are tried in turn. A block is freed in the arena that
+ * owns its extent, whichever thread frees it. Freeing an address that is not the base
+ * address of an allocated block is ignored. A zero-length request is given one word, so
+ * that every allocated block has an address of its own.
+ * <p>
+ * The length of each allocated block is kept in an AddressIndex of its extent, keyed by
+ * its base address, so the memory space keeps no state per word beside the engines.
+ * <p>
+ * In remote-free mode, a thread that frees a block outside its home arena does not
+ * take the lock of that arena. It pushes the address on a queue of the arena instead,
+ * with one compare-and-set, and the next malloc in that arena (normally by a thread
+ * whose home arena it is) takes the whole queue at once and frees its blocks in one
+ * batch, under the lock it already holds. This suits pipelines where blocks are
+ * allocated by one thread and freed by another. Until then, the blocks in the queue
+ * still appear as allocated. A block that is freed twice is queued twice; the second
+ * free is ignored, as any free of an address that is not allocated.
+ */
+public class ConcurrentMemorySpace {
+
+	// An address range with its own engine, owned by one arena at a time. Apart from
+	// the owner and the pending count, its fields are guarded by the lock of its owner.
+	private static class Extent {
+		final int baseAddress;
+		final int size;
+		final AllocatorEngine engine;
+
+		// Maps the relative address of each allocated block to its requested length
+		final AddressIndex lengths = new AddressIndex();
+
+		// The number of allocated blocks, and the number of words they hold
+		volatile int liveBlocks;
+		int usedWords;
+
+		// The arena that owns this extent
+		volatile Arena owner;
+
+		// The number of frees of blocks of this extent that are being queued or are queued
+		final AtomicInteger pendingCount = new AtomicInteger();
+
+		Extent(int baseAddress, int size, AllocatorEngine engine) {
+			this.baseAddress = baseAddress;
+			this.size = size;
+			this.engine = engine;
+		}
+	}
+
+	// An entry of a remote-free queue
+	private static class RemoteFree {
+		final Extent extent;
+		final int address;
+		RemoteFree next;
+
+		RemoteFree(Extent extent, int address) {
+			this.extent = extent;
+			this.address = address;
+		}
+	}
+
+	// A set of extents, with one lock
+	private static class Arena {
+		final int index;
+		final ReentrantLock lock = new ReentrantLock();
+
+		// The extents of this arena, in the order they are searched
+		final List<Extent> extents = new ArrayList<>();
+
+		// The number of extents of this arena, the number of their words, and the number
+		// of those that are allocated. They are written under the lock, and may be read
+		// without it for an estimate.
+		volatile int extentCount;
+		volatile int ownedWords;
+		volatile int usedWords;
+
+		// The remote-free queue, a stack with many producers that is only ever taken
+		// whole. Each push has an entry of its own, so the stack has no ABA problem.
+		final AtomicReference<RemoteFree> remoteHead = new AtomicReference<>();
+
+		Arena(int index) {
+			this.index = index;
+		}
+	}
+
+	// The arenas of this memory space
+	private final Arena[] arenas;
+
+	// The extents of this memory space, in address order
+	private final Extent[] extents;
+
+	// The size of this memory space
+	private final int maxSize;
+
+	// The size of every extent but the last one
+	private final int extentSize;
+
+	// Whether frees outside the home arena of the freeing thread go to remote-free queues
+	private final boolean remoteFrees;
+
+	// The number of threads that were assigned a home arena so far
+	private final AtomicInteger assignedThreads = new AtomicInteger();
+
+	// The index of the home arena of the current thread, or -1 before its first malloc
+	private final ThreadLocal<Integer> homeArena = ThreadLocal.withInitial(() -> -1);
+
+	// The rebalancer that is asked for an extent when a home arena cannot satisfy a request
+	private volatile ArenaRebalancer rebalancer;
+
+	/**
+	 * Constructs a new concurrent memory space of a given maximal size, split into the
+	 * given number of first-fit arenas.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param arenaCount
+	 *            the number of arenas
+	 * @throws IllegalArgumentException
+	 *         if the number of arenas is not positive, or greater than the size
+	 */
+	public ConcurrentMemorySpace(int maxSize, int arenaCount) {
+		this(maxSize, arenaCount, AllocatorEngines.DEFAULT_ENGINE);
+	}
+
+	/**
+	 * Constructs a new concurrent memory space of a given maximal size, split into the
+	 * given number of arenas, each managed by an engine of the given name.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param arenaCount
+	 *            the number of arenas
+	 * @param engineName
+	 *            the name of the engine of each arena, as accepted by AllocatorEngines.create
+	 * @throws IllegalArgumentException
+	 *         if the number of arenas is not positive, or greater than the size
+	 */
+	public ConcurrentMemorySpace(int maxSize, int arenaCount, String engineName) {
+		this(maxSize, arenaCount, engineName, false);
+	}
+
+	/**
+	 * Constructs a new concurrent memory space of a given maximal size, split into the
+	 * given number of arenas, each managed by an engine of the given name, in which
+	 * frees outside the home arena of the freeing thread may be deferred.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param arenaCount
+	 *            the number of arenas
+	 * @param engineName
+	 *            the name of the engine of each arena, as accepted by AllocatorEngines.create
+	 * @param remoteFrees
+	 *            true to push frees outside the home arena of the freeing thread on
+	 *            the remote-free queue of the arena, false to free them at once
+	 * @throws IllegalArgumentException
+	 *         if the number of arenas is not positive, or greater than the size
+	 */
+	public ConcurrentMemorySpace(int maxSize, int arenaCount, String engineName, boolean remoteFrees) {
+		this(maxSize, arenaCount, engineName, remoteFrees, 1);
+	}
+
+	/**
+	 * Constructs a new concurrent memory space of a given maximal size, split into the
+	 * given number of arenas, which start with the given number of extents each, managed
+	 * by engines of the given name.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param arenaCount
+	 *            the number of arenas
+	 * @param engineName
+	 *            the name of the engine of each extent, as accepted by AllocatorEngines.create
+	 * @param remoteFrees
+	 *            true to push frees outside the home arena of the freeing thread on
+	 *            the remote-free queue of the arena, false to free them at once
+	 * @param extentsPerArena
+	 *            the number of extents of each arena
+	 * @throws IllegalArgumentException
+	 *         if the number of arenas or extents is not positive, or if there are more
+	 *         extents than words
+	 */
+	public ConcurrentMemorySpace(int maxSize, int arenaCount, String engineName, boolean remoteFrees,
+			int extentsPerArena) {
+		if (arenaCount <= 0 || extentsPerArena <= 0 || (long) arenaCount * extentsPerArena > maxSize) {
+			throw new IllegalArgumentException("arena count must be between 1 and max size");
+		}
+		this.maxSize = maxSize;
+		this.remoteFrees = remoteFrees;
+		arenas = new Arena[arenaCount];
+		extents = new Extent[arenaCount * extentsPerArena];
+		extentSize = maxSize / extents.length;
+		for (int i = 0; i < arenaCount; i++) {
+			arenas[i] = new Arena(i);
+		}
+		for (int i = 0; i < extents.length; i++) {
+			int size = (i == extents.length - 1) ? maxSize - i * extentSize : extentSize;
+			extents[i] = new Extent(i * extentSize, size, AllocatorEngines.create(engineName, size));
+			addExtent(arenas[i / extentsPerArena], extents[i]);
+		}
+	}
+
+	/**
+	 * Returns the size of this memory space.
+	 * @return The size of this memory space.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of arenas of this memory space.
+	 * @return The number of arenas.
+	 */
+	public int getArenaCount() {
+		return arenas.length;
+	}
+
+	/**
+	 * Returns the pressure on an arena: the ratio of its allocated words to the words of
+	 * its extents, or 1 if it has no extents.
+	 *
+	 * @param arena
+	 *            the index of the arena
+	 * @return The pressure on the arena.
+	 */
+	public double getArenaPressure(int arena) {
+		Arena a = arenas[arena];
+		a.lock.lock();
+		try {
+			return (a.ownedWords == 0) ? 1 : (double) a.usedWords / a.ownedWords;
+		} finally {
+			a.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of extents that an arena presently owns.
+	 *
+	 * @param arena
+	 *            the index of the arena
+	 * @return The number of extents of the arena.
+	 */
+	public int getExtentCount(int arena) {
+		Arena a = arenas[arena];
+		a.lock.lock();
+		try {
+			return a.extents.size();
+		} finally {
+			a.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the pressure on an arena like getArenaPressure, but without taking its lock,
+	 * so the value may be slightly out of date.
+	 */
+	double estimateArenaPressure(int arena) {
+		Arena a = arenas[arena];
+		int owned = a.ownedWords;
+		return (owned == 0) ? 1 : Math.min(1, (double) a.usedWords / owned);
+	}
+
+	/**
+	 * Returns the number of extents of an arena like getExtentCount, but without taking
+	 * its lock, so the value may be slightly out of date.
+	 */
+	int estimateExtentCount(int arena) {
+		return arenas[arena].extentCount;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the home arena of
+	 * the current thread if possible, else from an extent the rebalancer moves into the
+	 * home arena, and otherwise from the first other arena that can. In remote-free
+	 * mode, the remote-free queue of an arena is drained before the arena is searched.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		int home = homeArena.get();
+		if (home < 0) {
+			home = assignedThreads.getAndIncrement() % arenas.length;
+			homeArena.set(home);
+		}
+		int address = mallocIn(home, length);
+		if (address >= 0) {
+			return address;
+		}
+		ArenaRebalancer current = rebalancer;
+		if (current != null) {
+			address = current.onFailedMalloc(home, length);
+			if (address >= 0) {
+				return address;
+			}
+		}
+		for (int i = 1; i < arenas.length; i++) {
+			address = mallocIn((home + i) % arenas.length, length);
+			if (address >= 0) {
+				return address;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address. Addresses
+	 * outside the memory space are ignored, like other addresses of no allocated block.
+	 * In remote-free mode, a block outside the home arena of the current thread is only
+	 * queued.
+	 *
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		Extent extent = extentOf(address);
+		if (extent == null) {
+			return;
+		}
+		if (remoteFrees && extent.owner != homeOf()) {
+			pushRemoteFree(extent, address);
+			return;
+		}
+		Arena arena = lockOwner(extent);
+		try {
+			freeIn(extent, address);
+		} finally {
+			arena.lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the memory blocks whose base addresses are given, taking the lock of an arena
+	 * once for each run of consecutive addresses in the same arena. Addresses outside
+	 * the memory space are ignored. In remote-free mode, the blocks outside the home
+	 * arena of the current thread are queued, as by free.
+	 *
+	 * @param addresses
+	 *            an array that holds the starting addresses of the blocks to free
+	 * @param from
+	 *            the index in the array of the first address
+	 * @param count
+	 *            the number of addresses
+	 */
+	public void freeAll(int[] addresses, int from, int count) {
+		int i = from;
+		int end = from + count;
+		while (i < end) {
+			Extent extent = extentOf(addresses[i]);
+			if (extent == null) {
+				i++;
+				continue;
+			}
+			if (remoteFrees && extent.owner != homeOf()) {
+				pushRemoteFree(extent, addresses[i]);
+				i++;
+				continue;
+			}
+			Arena arena = lockOwner(extent);
+			try {
+				for (; i < end && (extent = extentOf(addresses[i])) != null && extent.owner == arena; i++) {
+					freeIn(extent, addresses[i]);
+				}
+			} finally {
+				arena.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Performs defragmantation of every extent of this memory space, one arena at a time,
+	 * after draining the remote-free queue of the arena.
+	 */
+	public void defrag() {
+		for (Arena arena : arenas) {
+			arena.lock.lock();
+			try {
+				drainRemoteFrees(arena);
+				for (Extent extent : arena.extents) {
+					extent.engine.defrag();
+				}
+			} finally {
+				arena.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A textual representation of each extent of this memory space, arena by arena, for
+	 * debugging purposes. The addresses in the representation of an extent are relative
+	 * to its base address.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (Arena arena : arenas) {
+			arena.lock.lock();
+			try {
+				for (Extent extent : arena.extents) {
+					str.append("arena ").append(arena.index).append(" at ").append(extent.baseAddress).append(":\n");
+					str.append(extent.engine.toString()).append("\n");
+				}
+			} finally {
+				arena.lock.unlock();
+			}
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Sets the rebalancer that is asked for an extent when the home arena of a thread
+	 * cannot satisfy its request, or null for none.
+	 */
+	void setRebalancer(ArenaRebalancer rebalancer) {
+		this.rebalancer = rebalancer;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length from the given arena only.
+	 *
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	int mallocIn(int arena, int length) {
+		Arena a = arenas[arena];
+		a.lock.lock();
+		try {
+			drainRemoteFrees(a);
+			int words = Math.max(length, 1);
+			for (Extent extent : a.extents) {
+				if (words > extent.size) {
+					continue;
+				}
+				int address = extent.engine.malloc(words);
+				if (address >= 0) {
+					extent.lengths.add(address, length);
+					extent.liveBlocks++;
+					extent.usedWords += words;
+					a.usedWords += words;
+					return extent.baseAddress + address;
+				}
+			}
+			return -1;
+		} finally {
+			a.lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves an extent that has no allocated or queued blocks, and that is at least as
+	 * long as the given length, from one arena to another. The donor arena keeps at least
+	 * one extent.
+	 *
+	 * @return the size of the extent that was moved, or 0 if the donor has no such extent
+	 */
+	int migrateFreeExtent(int from, int to, int minLength) {
+		Arena donor = arenas[from];
+		Arena recipient = arenas[to];
+		Extent moved = null;
+		donor.lock.lock();
+		try {
+			drainRemoteFrees(donor);
+			for (int i = donor.extents.size() - 1; i > 0 && moved == null; i--) {
+				Extent extent = donor.extents.get(i);
+				// A free that is being queued counts itself as pending before it looks at
+				// liveBlocks, so either it sees the extent empty or the check below sees it
+				if (extent.size >= minLength && extent.liveBlocks == 0 && extent.pendingCount.get() == 0) {
+					donor.extents.remove(i);
+					donor.extentCount--;
+					donor.ownedWords -= extent.size;
+					extent.engine.defrag();
+					moved = extent;
+				}
+			}
+		} finally {
+			donor.lock.unlock();
+		}
+		if (moved == null) {
+			return 0;
+		}
+		recipient.lock.lock();
+		try {
+			addExtent(recipient, moved);
+		} finally {
+			recipient.lock.unlock();
+		}
+		return moved.size;
+	}
+
+	// Adds the given extent to the given arena, whose lock is held.
+	private static void addExtent(Arena arena, Extent extent) {
+		arena.extents.add(extent);
+		arena.extentCount++;
+		arena.ownedWords += extent.size;
+		extent.owner = arena;
+	}
+
+	// Frees the block at the given absolute address in the given extent, whose arena's
+	// lock is held. Addresses of no allocated block are ignored.
+	private static void freeIn(Extent extent, int address) {
+		int relative = address - extent.baseAddress;
+		int slot = extent.lengths.find(relative);
+		if (slot < 0) {
+			return;
+		}
+		int words = Math.max(extent.lengths.getValue(slot), 1);
+		extent.lengths.remove(slot);
+		extent.engine.free(relative);
+		extent.liveBlocks--;
+		extent.usedWords -= words;
+		extent.owner.usedWords -= words;
+	}
+
+	// Locks the arena that owns the given extent, and returns it. An extent with no
+	// allocated blocks may move meanwhile, so the owner is checked again under its lock.
+	private static Arena lockOwner(Extent extent) {
+		while (true) {
+			Arena arena = extent.owner;
+			arena.lock.lock();
+			if (extent.owner == arena) {
+				return arena;
+			}
+			arena.lock.unlock();
+		}
+	}
+
+	// Returns the home arena of the current thread, or null if it has none yet.
+	private Arena homeOf() {
+		int home = homeArena.get();
+		return (home < 0) ? null : arenas[home];
+	}
+
+	// Pushes the given absolute address on the remote-free queue of the arena that owns
+	// its extent, unless the extent has no allocated blocks.
+	private static void pushRemoteFree(Extent extent, int address) {
+		extent.pendingCount.incrementAndGet();
+		if (extent.liveBlocks == 0) {
+			extent.pendingCount.decrementAndGet();
+			return;
+		}
+		RemoteFree entry = new RemoteFree(extent, address);
+		Arena arena = extent.owner;
+		while (true) {
+			entry.next = arena.remoteHead.get();
+			if (arena.remoteHead.compareAndSet(entry.next, entry)) {
+				return;
+			}
+		}
+	}
+
+	// Takes the whole remote-free queue of the given arena, whose lock is held, and
+	// frees its blocks.
+	private void drainRemoteFrees(Arena arena) {
+		if (!remoteFrees || arena.remoteHead.get() == null) {
+			return;
+		}
+		for (RemoteFree entry = arena.remoteHead.getAndSet(null); entry != null; entry = entry.next) {
+			freeIn(entry.extent, entry.address);
+			entry.extent.pendingCount.decrementAndGet();
+		}
+	}
+
+	// Returns the extent that contains the given address, or null if the address is
+	// outside the memory space.
+	private Extent extentOf(int address) {
+		if (address < 0 || address >= maxSize) {
+			return null;
+		}
+		return extents[Math.min(address / extentSize, extents.length - 1)];
+	}
+}
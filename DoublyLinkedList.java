@@ -0,0 +1,310 @@
+/**
+ * Represents a list of Nodes, in which each node also points to the node before it.
+ * The list has the same methods as LinkedList. In addition, removing a given node and
+ * inserting a block before or after a given node take O(1) time, since the neighbours
+ * of a node are found through its prev and next pointers rather than by a scan.
+ */
+public class DoublyLinkedList {
+	
+	private Node first; // pointer to the first element of this list
+	private Node last;  // pointer to the last element of this list
+	private int size;   // number of elements in this list
+
+	// The node returned by the last call to getNode, and its index, or null if the
+	// list changed since then. The walk to an index starts from whichever of the first
+	// node, the last node and this node is closest. Appending a node keeps the finger;
+	// any other change to the list invalidates it.
+	private Node finger;
+	private int fingerIndex;
+	
+	/**
+	 * Constructs a new list.
+	 */ 
+	public DoublyLinkedList() {
+		first = null;
+		last = null;
+		size = 0;
+	}
+	
+	/**
+	 * Gets the first node of the list
+	 * @return The first node of the list.
+	 */		
+	public Node getFirst() {
+		return this.first;
+	}
+
+	/**
+	 * Gets the last node of the list
+	 * @return The last node of the list.
+	 */		
+	public Node getLast() {
+		return this.last;
+	}
+	
+	/**
+	 * Gets the current size of the list
+	 * @return The size of the list.
+	 */		
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Gets the node located at the given index in this list. The node is reached
+	 * from the end of the list, or the node returned by the previous call, that is
+	 * closest to the index.
+	 * 
+	 * @param index
+	 *        the index of the node to retrieve, between 0 and size
+	 * @throws IllegalArgumentException
+	 *         if index is negative or greater than or equal to the list's size
+	 * @return the node at the given index
+	 */		
+	public Node getNode(int index) {
+		if (index < 0 || index >= size) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		Node current = first;
+		int i = 0;
+		if (size - 1 - index < index) {
+			current = last;
+			i = size - 1;
+		}
+		if (finger != null && Math.abs(fingerIndex - index) < Math.abs(i - index)) {
+			current = finger;
+			i = fingerIndex;
+		}
+		for (; i < index; i++) {
+			current = current.next;
+		}
+		for (; i > index; i--) {
+			current = current.prev;
+		}
+		finger = current;
+		fingerIndex = index;
+		return current;
+	}
+
+	/**
+	 * Creates a new Node object that points to the given memory block, 
+	 * and inserts the node at the given index in this list.
+	 * 
+	 * @param index
+	 *        the index before which the memory block should be inserted
+	 * @param block
+	 *        the memory block to be inserted into the list
+	 * @throws IllegalArgumentException
+	 *         if index is negative or greater than the list's size
+	 */
+	public void add(int index, MemoryBlock block) {
+		if (index < 0 || index > size) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		if (index == size) {
+			addLast(block);
+		} else {
+			addBefore(getNode(index), block);
+		}
+	}
+
+	/**
+	 * Creates a new node that points to the given memory block, and adds it
+	 * to the end of this list (the node will become the list's last element).
+	 * 
+	 * @param block
+	 *        the given memory block
+	 * @return the new node
+	 */
+	public Node addLast(MemoryBlock block) {
+		if (last == null) {
+			return addFirst(block);
+		}
+		return addAfter(last, block);
+	}
+
+	/**
+	 * Creates a new node that points to the given memory block, and adds it 
+	 * to the beginning of this list (the node will become the list's first element).
+	 * 
+	 * @param block
+	 *        the given memory block
+	 * @return the new node
+	 */
+	public Node addFirst(MemoryBlock block) {
+		if (first != null) {
+			return addBefore(first, block);
+		}
+		Node newNode = new Node(block);
+		first = newNode;
+		last = newNode;
+		size++;
+		finger = null;
+		return newNode;
+	}
+
+	/**
+	 * Creates a new node that points to the given memory block, and inserts it
+	 * right before the given node of this list, in O(1) time.
+	 * 
+	 * @param node
+	 *        a node of this list
+	 * @param block
+	 *        the given memory block
+	 * @return the new node
+	 */
+	public Node addBefore(Node node, MemoryBlock block) {
+		Node newNode = new Node(block);
+		newNode.prev = node.prev;
+		newNode.next = node;
+		if (node.prev == null) {
+			first = newNode;
+		} else {
+			node.prev.next = newNode;
+		}
+		node.prev = newNode;
+		size++;
+		finger = null;
+		return newNode;
+	}
+
+	/**
+	 * Creates a new node that points to the given memory block, and inserts it
+	 * right after the given node of this list, in O(1) time.
+	 * 
+	 * @param node
+	 *        a node of this list
+	 * @param block
+	 *        the given memory block
+	 * @return the new node
+	 */
+	public Node addAfter(Node node, MemoryBlock block) {
+		Node newNode = new Node(block);
+		newNode.prev = node;
+		newNode.next = node.next;
+		if (node.next == null) {
+			last = newNode;
+		} else {
+			node.next.prev = newNode;
+		}
+		node.next = newNode;
+		size++;
+		if (newNode != last) {
+			finger = null;
+		}
+		return newNode;
+	}
+
+	/**
+	 * Gets the memory block located at the given index in this list.
+	 * 
+	 * @param index
+	 *        the index of the retrieved memory block
+	 * @return the memory block at the given index
+	 * @throws IllegalArgumentException
+	 *         if index is negative or greater than or equal to size
+	 */
+	public MemoryBlock getBlock(int index) {
+		return getNode(index).block;
+	}
+
+	/**
+	 * Gets the index of the node pointing to the given memory block.
+	 * 
+	 * @param block
+	 *        the given memory block
+	 * @return the index of the block, or -1 if the block is not in this list
+	 */
+	public int indexOf(MemoryBlock block) {
+		Node current = first;
+		for (int i = 0; i < size; i++) {
+			if (current.block.equals(block)) {
+				return i;
+			}
+			current = current.next;
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the given node from this list, in O(1) time.
+	 * 
+	 * @param node
+	 *        the node that will be removed from this list
+	 * @throws IllegalArgumentException
+	 *         if the node is evidently not in this list
+	 */
+	public void remove(Node node) {
+		if (node == null) {
+			throw new NullPointerException("NullPointerException!");
+		}
+		if (node.prev == null ? first != node : node.prev.next != node) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		if (node.prev == null) {
+			first = node.next;
+		} else {
+			node.prev.next = node.next;
+		}
+		if (node.next == null) {
+			last = node.prev;
+		} else {
+			node.next.prev = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+		size--;
+		finger = null;
+	}
+
+	/**
+	 * Removes from this list the node which is located at the given index.
+	 * 
+	 * @param index the location of the node that has to be removed.
+	 * @throws IllegalArgumentException
+	 *         if index is negative or greater than or equal to size
+	 */
+	public void remove(int index) {
+		remove(getNode(index));
+	}
+
+	/**
+	 * Removes from this list the node pointing to the given memory block.
+	 * 
+	 * @param block the memory block that should be removed from the list
+	 * @throws IllegalArgumentException
+	 *         if the given memory block is not in this list
+	 */
+	public void remove(MemoryBlock block) {
+		if (block == null) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		for (Node current = first; current != null; current = current.next) {
+			if (current.block.equals(block)) {
+				remove(current);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("index must be between 0 and size");
+	}
+
+	/**
+	 * Returns an iterator over this list, starting with the first element.
+	 */
+	public ListIterator iterator() {
+		return new ListIterator(first);
+	}
+
+	/**
+	 * A textual representation of this list, for debugging.
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		Node current = this.first;
+		while (current != null) {
+			str.append(current.block.toString()).append(" ");
+			current = current.next;
+		}
+		return str.toString();
+	}
+}
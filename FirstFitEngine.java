@@ -0,0 +1,430 @@
+import java.io.IOException;
+
+/**
+ * An allocator engine that keeps the free memory blocks in a single list, and
+ * allocates from the first free block that is large enough. This is the engine
+ * used by a MemorySpace unless another engine is given.
+ * <p>
+ * By default, freed blocks are appended to the end of the free list, and adjacent
+ * free blocks stay apart until defrag is called. In address-ordered mode, the free
+ * list is kept sorted by base address instead, and a freed block is merged right away
+ * with the free blocks that end where it begins and begin where it ends. The free list
+ * is then always coalesced, and defrag has no work to do.
+ * <p>
+ * In next-fit mode, the scan of malloc starts where the previous successful malloc
+ * found its block (the "rover"), rather than at the beginning of the free list, and
+ * wraps around at the end of the list. The engine counts the mallocs and the free
+ * blocks they inspect, so the placement modes can be compared on the same workload.
+ * <p>
+ * The free list and the allocated list can be written to a snapshot and read back, in
+ * the order in which they are kept. Each block is written as two varints: the distance
+ * of its base address from the end of the previous block of its list (zig-zag encoded,
+ * since the free list need not be sorted), and its length. Blocks that follow each other
+ * in memory, such as blocks allocated one after the other, take two or three bytes.
+ */
+public class FirstFitEngine implements AllocatorEngine {
+
+	/** The first four bytes of a snapshot of this engine. */
+	public static final int SNAPSHOT_MAGIC = 0x4D534E50;
+
+	/** The version of the snapshot format written by writeSnapshot. */
+	public static final int SNAPSHOT_VERSION = 1;
+
+	// The flags of a snapshot
+	private static final int ADDRESS_ORDERED_FLAG = 1;
+	private static final int NEXT_FIT_FLAG = 2;
+
+	// The size of the memory space
+	private int maxSize;
+
+	// The memory blocks that are presently allocated
+	private AllocationTable allocated;
+
+	// A list of memory blocks that are presently free
+	private DoublyLinkedList freeList;
+
+	// Whether the free list is kept sorted by address and coalesced on every free
+	private boolean addressOrdered;
+
+	// Whether malloc resumes its scan from the rover
+	private boolean nextFit;
+
+	// The free block where the previous successful malloc stopped, or null to start
+	// from the beginning of the free list
+	private Node rover;
+
+	// The number of mallocs, and the number of free blocks they inspected
+	private long mallocCount;
+	private long inspectedCount;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public FirstFitEngine(int maxSize) {
+		this(maxSize, false);
+	}
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param addressOrdered
+	 *            true to keep the free list sorted by address and coalesce it on every free,
+	 *            false to append freed blocks to the end of the free list
+	 */
+	public FirstFitEngine(int maxSize, boolean addressOrdered) {
+		this(maxSize, addressOrdered, false);
+	}
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param addressOrdered
+	 *            true to keep the free list sorted by address and coalesce it on every free,
+	 *            false to append freed blocks to the end of the free list
+	 * @param nextFit
+	 *            true to resume each malloc scan where the previous malloc stopped,
+	 *            false to start each scan at the beginning of the free list
+	 */
+	public FirstFitEngine(int maxSize, boolean addressOrdered, boolean nextFit) {
+		this.maxSize = maxSize;
+		this.addressOrdered = addressOrdered;
+		this.nextFit = nextFit;
+		allocated = new AllocationTable();
+	    // Initializes a free list containing a single block which represents
+	    // the entire memory. The base address of this single initial block is
+	    // zero, and its length is the given memory size.
+		freeList = new DoublyLinkedList();
+		freeList.addLast(new MemoryBlock(0, maxSize));
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). Returns the
+	 * base address of the allocated block, or -1 if unable to allocate.
+	 * 
+	 * This implementation scans the freeList, looking for the first free memory block 
+	 * whose length equals at least the given length. If such a block is found, the method 
+	 * performs the following operations:
+	 * 
+	 * (1) A new memory block is constructed. The base address of the new block is set to
+	 * the base address of the found free block. The length of the new block is set to the value 
+	 * of the method's length parameter.
+	 * 
+	 * (2) The new memory block is appended to the end of the allocatedList.
+	 * 
+	 * (3) The base address and the length of the found free block are updated, to reflect the allocation.
+	 * For example, suppose that the requested block length is 17, and suppose that the base
+	 * address and length of the the found free block are 250 and 20, respectively.
+	 * In such a case, the base address and length of of the allocated block
+	 * are set to 250 and 17, respectively, and the base address and length
+	 * of the found free block are set to 267 and 3, respectively.
+	 * 
+	 * (4) The new memory block is returned.
+	 * 
+	 * If the length of the found block is exactly the same as the requested length, 
+	 * then the found block is removed from the freeList and appended to the allocatedList.
+	 * 
+	 * In next-fit mode, the scan starts at the rover instead of the beginning of the
+	 * freeList, and continues from the beginning after the end of the list is reached.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {		
+		if (length < 0) {
+			return -1;
+		}
+		mallocCount++;
+		Node current = (nextFit && rover != null) ? rover : freeList.getFirst(); 
+		for (int i = 0; i < freeList.getSize(); i++) {
+			inspectedCount++;
+			if (current.block.length >= length) { 
+				MemoryBlock m = new MemoryBlock(current.block.baseAddress, length);
+				allocated.add(m);
+				if (current.block.length == length) {
+					rover = current.next;
+					freeList.remove(current);
+				}
+				else {
+					rover = current;
+					current.block.baseAddress += length;
+					current.block.length -= length;
+				}
+				return m.baseAddress;
+			}
+			current = (current.next != null) ? current.next : freeList.getFirst();
+		}
+		return -1;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * This implementation deletes the block whose base address equals the given 
+	 * address from the allocatedList, and adds it at the end of the free list. 
+	 * In address-ordered mode, the block is merged into its free neighbours instead,
+	 * or inserted between them if it is not adjacent to either.
+	 * 
+	 * @param address
+	 *            the starting address of the block to freeList
+	 */
+	public void free(int address) {
+		MemoryBlock free = allocated.remove(address);
+		if (free == null) {
+			return;
+		}
+		if (addressOrdered) {
+			insertCoalesced(free);
+		} else { 
+			this.freeList.addLast(free);
+		}
+	}
+
+	// Inserts the given block into the address-ordered free list, merging it with the
+	// free block that ends where it begins and with the free block that begins where it ends.
+	private void insertCoalesced(MemoryBlock block) {
+		Node prev = null;
+		Node next = freeList.getFirst();
+		while (next != null && next.block.baseAddress < block.baseAddress) {
+			prev = next;
+			next = next.next;
+		}
+		boolean mergedPrev = prev != null && prev.block.baseAddress + prev.block.length == block.baseAddress;
+		if (mergedPrev) {
+			prev.block.length += block.length;
+			block = prev.block;
+		}
+		if (next != null && block.baseAddress + block.length == next.block.baseAddress) {
+			if (mergedPrev) {
+				block.length += next.block.length;
+				if (rover == next) {
+					rover = prev;
+				}
+				freeList.remove(next);
+			} else {
+				next.block.baseAddress = block.baseAddress;
+				next.block.length += block.length;
+			}
+		} else if (!mergedPrev) {
+			if (next == null) {
+				freeList.addLast(block);
+			} else {
+				freeList.addBefore(next, block);
+			}
+		}
+	}
+	
+	/**
+	 * A textual representation of the free list and the allocated list of this engine, 
+	 * for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		return freeList.toString() + "\n" + allocated.toString();		
+	}
+	
+	/**
+	 * Performs defragmantation of the free list: every run of adjacent free blocks is
+	 * merged into the block of the run that has the lowest base address. The merged
+	 * blocks keep their places in the free list, and the blocks that were merged into
+	 * them are removed from it.
+	 * <p>
+	 * The blocks are sorted by address once, the runs are merged in a single sweep over
+	 * the sorted blocks, and the free list is rebuilt in a single pass, so defrag takes
+	 * O(n log n) time for n free blocks.
+	 * In address-ordered mode the free list is always coalesced, and nothing is done.
+	 */
+	public void defrag() {
+		if (addressOrdered) {
+			return;
+		}
+		int n = freeList.getSize();
+		MemoryBlock[] blocks = new MemoryBlock[n];
+		// Each key holds a block's address in its high half and its list index in its
+		// low half, so sorting the keys sorts the list indexes by address.
+		long[] keys = new long[n];
+		ListIterator itr = freeList.iterator();
+		for (int i = 0; i < n; i++) {
+			blocks[i] = itr.next();
+			keys[i] = ((long) blocks[i].baseAddress << 32) | i;
+		}
+		java.util.Arrays.sort(keys);
+		boolean[] merged = new boolean[n];
+		MemoryBlock run = null;
+		for (int i = 0; i < n; i++) {
+			int index = (int) keys[i];
+			MemoryBlock block = blocks[index];
+			if (run != null && run.baseAddress + run.length == block.baseAddress) {
+				run.length += block.length;
+				merged[index] = true;
+			} else {
+				run = block;
+			}
+		}
+		DoublyLinkedList defragged = new DoublyLinkedList();
+		for (int i = 0; i < n; i++) {
+			if (!merged[i]) {
+				defragged.addLast(blocks[i]);
+			}
+		}
+		freeList = defragged;
+		rover = null;
+	}
+
+	/**
+	 * Writes the free list and the allocated list of this engine, in their order, and the
+	 * place of the rover, to the given output. The output is not flushed.
+	 * 
+	 * @param out
+	 *            the output
+	 * @throws IOException
+	 *         if the output cannot be written
+	 */
+	public void writeSnapshot(SnapshotOutput out) throws IOException {
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeVarInt(SNAPSHOT_VERSION);
+		out.writeVarInt((addressOrdered ? ADDRESS_ORDERED_FLAG : 0) | (nextFit ? NEXT_FIT_FLAG : 0));
+		out.writeVarInt(maxSize);
+		out.writeVarInt(freeList.getSize());
+		out.writeVarInt(indexOfRover() + 1);
+		int end = 0;
+		for (Node node = freeList.getFirst(); node != null; node = node.next) {
+			out.writeSignedVarInt(node.block.baseAddress - end);
+			out.writeVarInt(node.block.length);
+			end = node.block.baseAddress + node.block.length;
+		}
+		out.writeVarInt(allocated.getSize());
+		end = 0;
+		for (int slot = allocated.getFirst(); slot != PooledBlockList.NIL; slot = allocated.getNext(slot)) {
+			int baseAddress = allocated.getBaseAddress(slot);
+			int length = allocated.getLength(slot);
+			out.writeSignedVarInt(baseAddress - end);
+			out.writeVarInt(length);
+			end = baseAddress + length;
+		}
+	}
+
+	/**
+	 * Reads an engine from a snapshot written by writeSnapshot. The lists are rebuilt in a
+	 * single pass over the snapshot, by appending each block to the end of its list, so no
+	 * free block is searched for. The snapshot is checked for its format, and for blocks
+	 * that lie outside the memory space, but not for blocks that overlap. The statistics of
+	 * the engine start from zero.
+	 * 
+	 * @param in
+	 *            the input, at the beginning of the snapshot
+	 * @return the engine
+	 * @throws IOException
+	 *         if the input cannot be read, or does not hold a snapshot of this version
+	 */
+	public static FirstFitEngine readSnapshot(SnapshotInput in) throws IOException {
+		if (in.readInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("not a snapshot of a FirstFitEngine");
+		}
+		int version = in.readVarInt();
+		if (version != SNAPSHOT_VERSION) {
+			throw new IOException("unsupported snapshot version " + version);
+		}
+		int flags = in.readVarInt();
+		int maxSize = in.readVarInt();
+		if (maxSize < 0) {
+			throw new IOException("corrupt snapshot: max size " + maxSize);
+		}
+		FirstFitEngine engine = new FirstFitEngine(maxSize, (flags & ADDRESS_ORDERED_FLAG) != 0,
+				(flags & NEXT_FIT_FLAG) != 0);
+		engine.freeList = new DoublyLinkedList();
+		int freeCount = readCount(in);
+		int roverIndex = in.readVarInt() - 1;
+		if (roverIndex >= freeCount || roverIndex < -1) {
+			throw new IOException("corrupt snapshot: rover " + roverIndex);
+		}
+		long end = 0;
+		for (int i = 0; i < freeCount; i++) {
+			int baseAddress = readBaseAddress(in, end, maxSize);
+			int length = readLength(in, baseAddress, maxSize);
+			Node node = engine.freeList.addLast(new MemoryBlock(baseAddress, length));
+			if (i == roverIndex) {
+				engine.rover = node;
+			}
+			end = (long) baseAddress + length;
+		}
+		int allocatedCount = readCount(in);
+		end = 0;
+		for (int i = 0; i < allocatedCount; i++) {
+			int baseAddress = readBaseAddress(in, end, maxSize);
+			int length = readLength(in, baseAddress, maxSize);
+			engine.allocated.add(baseAddress, length);
+			end = (long) baseAddress + length;
+		}
+		return engine;
+	}
+
+	// Returns the index of the rover in the free list, or -1 if there is no rover.
+	private int indexOfRover() {
+		int index = 0;
+		for (Node node = rover == null ? null : freeList.getFirst(); node != null; node = node.next) {
+			if (node == rover) {
+				return index;
+			}
+			index++;
+		}
+		return -1;
+	}
+
+	// Reads the number of blocks of a list.
+	private static int readCount(SnapshotInput in) throws IOException {
+		int count = in.readVarInt();
+		if (count < 0) {
+			throw new IOException("corrupt snapshot: block count " + count);
+		}
+		return count;
+	}
+
+	// Reads the base address of a block, given the end of the previous block of its list.
+	private static int readBaseAddress(SnapshotInput in, long end, int maxSize) throws IOException {
+		long baseAddress = end + in.readSignedVarInt();
+		if (baseAddress < 0 || baseAddress > maxSize) {
+			throw new IOException("corrupt snapshot: base address " + baseAddress);
+		}
+		return (int) baseAddress;
+	}
+
+	// Reads the length of the block at the given base address.
+	private static int readLength(SnapshotInput in, int baseAddress, int maxSize) throws IOException {
+		int length = in.readVarInt();
+		if (length < 0 || length > maxSize - baseAddress) {
+			throw new IOException("corrupt snapshot: block (" + baseAddress + " , " + length + ")");
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the number of calls to malloc with a non-negative length.
+	 * @return The number of mallocs.
+	 */
+	public long getMallocCount() {
+		return mallocCount;
+	}
+
+	/**
+	 * Gets the total number of free blocks inspected by malloc.
+	 * @return The number of inspected blocks.
+	 */
+	public long getInspectedCount() {
+		return inspectedCount;
+	}
+
+	/**
+	 * Gets the average number of free blocks inspected by a malloc.
+	 * @return The average number of inspected blocks, or 0 if malloc was not called.
+	 */
+	public double getAverageInspected() {
+		return (mallocCount == 0) ? 0 : (double) inspectedCount / mallocCount;
+	}
+}
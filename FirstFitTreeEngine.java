@@ -0,0 +1,272 @@
+/**
+ * An allocator engine with address-ordered first-fit placement, like a FirstFitEngine
+ * in address-ordered mode, in which malloc and free take O(log n) time instead of
+ * scanning the free list.
+ * <p>
+ * The free blocks are kept in a treap (a binary search tree that is balanced by random
+ * priorities) ordered by base address, and every tree node also holds the maximal length
+ * of the free blocks in its subtree. malloc descends from the root towards the lowest
+ * addressed block that is large enough, going left whenever the left subtree holds a
+ * large enough block. free merges the freed block with the free blocks that end where it
+ * begins and begin where it ends, so the free blocks are always coalesced, and defrag has
+ * no work to do. Zero-length blocks hold no memory, and are not added to the tree.
+ */
+public class FirstFitTreeEngine implements AllocatorEngine {
+
+	// A free block, as a node of the treap
+	private static class TreeNode {
+		int baseAddress;
+		int length;
+		int maxLength;    // the maximal length of the blocks in this subtree
+		int priority;     // a random priority, not smaller than the priorities of the children
+		TreeNode left;
+		TreeNode right;
+
+		TreeNode(int baseAddress, int length, int priority) {
+			this.baseAddress = baseAddress;
+			this.length = length;
+			this.maxLength = length;
+			this.priority = priority;
+		}
+	}
+
+	// The memory blocks that are presently allocated
+	private AllocationTable allocated;
+
+	// The root of the treap of free blocks, or null if no block is free
+	private TreeNode root;
+
+	// The state of the xorshift generator of node priorities
+	private int seed = 0x2545F491;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public FirstFitTreeEngine(int maxSize) {
+		allocated = new AllocationTable();
+		if (maxSize > 0) {
+			root = new TreeNode(0, maxSize, nextPriority());
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the free block
+	 * with the lowest base address whose length equals at least the given length.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0 || root == null || root.maxLength < length) {
+			return -1;
+		}
+		TreeNode node = root;
+		while (true) {
+			if (node.left != null && node.left.maxLength >= length) {
+				node = node.left;
+			} else if (node.length >= length) {
+				break;
+			} else {
+				node = node.right;
+			}
+		}
+		int address = node.baseAddress;
+		allocated.add(address, length);
+		if (node.length == length) {
+			root = delete(root, address);
+		} else {
+			// The block keeps its place in the address order, so only the lengths on
+			// the path to it have to be updated.
+			node.baseAddress += length;
+			node.length -= length;
+			update(root, node.baseAddress);
+		}
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and merges
+	 * it with its free neighbours.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		int length = allocated.removeLength(address);
+		if (length <= 0) {
+			return;
+		}
+		TreeNode prev = lower(address);
+		TreeNode next = ceiling(address);
+		boolean mergesPrev = prev != null && prev.baseAddress + prev.length == address;
+		boolean mergesNext = next != null && address + length == next.baseAddress;
+		if (mergesPrev && mergesNext) {
+			prev.length += length + next.length;
+			root = delete(root, next.baseAddress);
+			update(root, prev.baseAddress);
+		} else if (mergesPrev) {
+			prev.length += length;
+			update(root, prev.baseAddress);
+		} else if (mergesNext) {
+			next.baseAddress = address;
+			next.length += length;
+			update(root, address);
+		} else {
+			root = insert(root, new TreeNode(address, length, nextPriority()));
+		}
+	}
+
+	/**
+	 * Does nothing: free blocks are merged with their neighbours as soon as they are freed.
+	 */
+	public void defrag() {
+	}
+
+	/**
+	 * A textual representation of the free blocks, in address order, and the allocated
+	 * blocks of this engine, for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		appendInOrder(root, str);
+		return str.append("\n").append(allocated.toString()).toString();
+	}
+
+	// Appends the blocks of the given subtree to the given string, in address order.
+	private void appendInOrder(TreeNode t, StringBuilder str) {
+		while (t != null) {
+			appendInOrder(t.left, str);
+			str.append(new MemoryBlock(t.baseAddress, t.length)).append(" ");
+			t = t.right;
+		}
+	}
+
+	// Returns the block with the largest base address below the given address, or null.
+	private TreeNode lower(int address) {
+		TreeNode found = null;
+		for (TreeNode t = root; t != null; ) {
+			if (t.baseAddress < address) {
+				found = t;
+				t = t.right;
+			} else {
+				t = t.left;
+			}
+		}
+		return found;
+	}
+
+	// Returns the block with the smallest base address at or above the given address, or null.
+	private TreeNode ceiling(int address) {
+		TreeNode found = null;
+		for (TreeNode t = root; t != null; ) {
+			if (t.baseAddress >= address) {
+				found = t;
+				t = t.left;
+			} else {
+				t = t.right;
+			}
+		}
+		return found;
+	}
+
+	// Recomputes the maximal lengths on the path from the given subtree to the block
+	// with the given base address.
+	private void update(TreeNode t, int address) {
+		if (t == null) {
+			return;
+		}
+		if (address < t.baseAddress) {
+			update(t.left, address);
+		} else if (address > t.baseAddress) {
+			update(t.right, address);
+		}
+		pull(t);
+	}
+
+	// Inserts the given node into the given subtree, and returns the subtree's new root.
+	private TreeNode insert(TreeNode t, TreeNode node) {
+		if (t == null) {
+			return node;
+		}
+		if (node.baseAddress < t.baseAddress) {
+			t.left = insert(t.left, node);
+			if (t.left.priority > t.priority) {
+				t = rotateRight(t);
+			}
+		} else {
+			t.right = insert(t.right, node);
+			if (t.right.priority > t.priority) {
+				t = rotateLeft(t);
+			}
+		}
+		pull(t);
+		return t;
+	}
+
+	// Deletes the block with the given base address from the given subtree, and returns
+	// the subtree's new root.
+	private TreeNode delete(TreeNode t, int address) {
+		if (address < t.baseAddress) {
+			t.left = delete(t.left, address);
+		} else if (address > t.baseAddress) {
+			t.right = delete(t.right, address);
+		} else if (t.left == null) {
+			return t.right;
+		} else if (t.right == null) {
+			return t.left;
+		} else if (t.left.priority > t.right.priority) {
+			t = rotateRight(t);
+			t.right = delete(t.right, address);
+		} else {
+			t = rotateLeft(t);
+			t.left = delete(t.left, address);
+		}
+		pull(t);
+		return t;
+	}
+
+	// Makes the left child of the given node the root of its subtree.
+	private TreeNode rotateRight(TreeNode t) {
+		TreeNode l = t.left;
+		t.left = l.right;
+		l.right = t;
+		pull(t);
+		pull(l);
+		return l;
+	}
+
+	// Makes the right child of the given node the root of its subtree.
+	private TreeNode rotateLeft(TreeNode t) {
+		TreeNode r = t.right;
+		t.right = r.left;
+		r.left = t;
+		pull(t);
+		pull(r);
+		return r;
+	}
+
+	// Recomputes the maximal length of the given node's subtree from its children.
+	private static void pull(TreeNode t) {
+		int max = t.length;
+		if (t.left != null && t.left.maxLength > max) {
+			max = t.left.maxLength;
+		}
+		if (t.right != null && t.right.maxLength > max) {
+			max = t.right.maxLength;
+		}
+		t.maxLength = max;
+	}
+
+	// Returns the next priority of the xorshift generator.
+	private int nextPriority() {
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+}
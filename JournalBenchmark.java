@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures what journaling adds to the latency of malloc and free. The workload keeps a
+ * fixed number of blocks live, and repeatedly frees a random one and allocates a block of
+ * random length in its place, with a defrag every DEFRAG_PERIOD calls. It runs on a plain
+ * MemorySpace, on a JournaledMemorySpace, and on a JournaledMemorySpace that calls sync
+ * after every call, as a journal without group commit would. The program prints the
+ * average time of a call for each, and the average number of records in a batch.
+ * <p>
+ * Usage: java JournalBenchmark [calls]
+ */
+public class JournalBenchmark {
+
+	// The largest block length requested by the workload
+	private static final int MAX_LENGTH = 64;
+
+	// The number of blocks that the workload keeps live
+	private static final int LIVE_BLOCKS = 1024;
+
+	// The number of calls between two defrags
+	private static final int DEFRAG_PERIOD = 4096;
+
+	public static void main(String[] args) throws IOException {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int maxSize = 4 * LIVE_BLOCKS * MAX_LENGTH;
+		System.out.println("calls: " + calls);
+
+		MemorySpace plain = new MemorySpace(maxSize);
+		run(plain, calls, false);
+		System.out.printf("plain     %8.0f ns/call%n", run(plain, calls, false));
+
+		Path directory = Files.createTempDirectory("memoryspace");
+		try {
+			JournaledMemorySpace journaled = JournaledMemorySpace.open(directory, maxSize);
+			double time = run(journaled, calls, false);
+			journaled.sync();
+			MemoryJournal journal = journaled.getJournal();
+			System.out.printf("journaled %8.0f ns/call, %.1f records/batch%n", time,
+					(double) journal.getDurableSequence() / journal.getBatchCount());
+			journaled.close();
+
+			// Fewer calls, since each one waits for the storage device
+			journaled = JournaledMemorySpace.open(directory, maxSize);
+			journaled.checkpoint();
+			System.out.printf("synced    %8.0f ns/call%n", run(journaled, Math.max(1, calls / 100), true));
+			journaled.close();
+		} finally {
+			Files.deleteIfExists(directory.resolve(JournaledMemorySpace.CHECKPOINT_FILE));
+			Files.deleteIfExists(directory.resolve(JournaledMemorySpace.JOURNAL_FILE));
+			Files.delete(directory);
+		}
+	}
+
+	// Runs the workload on the given memory space, and returns the average time of a call,
+	// in nanoseconds.
+	private static double run(MemorySpace memory, int calls, boolean sync) throws IOException {
+		Random random = new Random(42);
+		int[] live = new int[LIVE_BLOCKS];
+		for (int i = 0; i < LIVE_BLOCKS; i++) {
+			live[i] = memory.malloc(1 + random.nextInt(MAX_LENGTH));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < calls; i += 2) {
+			int victim = random.nextInt(LIVE_BLOCKS);
+			memory.free(live[victim]);
+			if (sync) {
+				((JournaledMemorySpace) memory).sync();
+			}
+			live[victim] = memory.malloc(1 + random.nextInt(MAX_LENGTH));
+			if (sync) {
+				((JournaledMemorySpace) memory).sync();
+			}
+			if (i % DEFRAG_PERIOD == 0) {
+				memory.defrag();
+			}
+		}
+		double time = (double) (System.nanoTime() - start) / calls;
+		for (int address : live) {
+			memory.free(address);
+		}
+		return time;
+	}
+}
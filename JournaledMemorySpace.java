@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory space that survives crashes: it keeps a directory with a checkpoint, which is a
+ * snapshot of its FirstFitEngine, and a MemoryJournal of the calls made since then. Every
+ * successful malloc, every free and every defrag is appended to the journal before the
+ * call returns, but the journal is written to the file by its own thread, in batches, so
+ * the calls do not wait for the storage device; sync waits until the calls made so far
+ * are durable. checkpoint writes a new snapshot and empties the journal, so that recovery
+ * has less to replay.
+ * <p>
+ * open recovers the memory space from the directory: it restores the checkpoint, if there
+ * is one, and replays the records of the journal that came after it. The checkpoint holds
+ * the sequence of the first record that it does not cover, so a crash between writing a
+ * checkpoint and emptying the journal does not replay records twice. A malloc that fails
+ * is not journaled, since it does not change the engine. Like MemorySpace, this class is
+ * not thread-safe.
+ */
+public class JournaledMemorySpace extends MemorySpace {
+
+	/** The name of the checkpoint file in the directory. */
+	public static final String CHECKPOINT_FILE = "checkpoint";
+
+	/** The name of the journal file in the directory. */
+	public static final String JOURNAL_FILE = "journal";
+
+	/** The first four bytes of a checkpoint. */
+	public static final int CHECKPOINT_MAGIC = 0x4D534350;
+
+	// The directory of the checkpoint and the journal
+	private final Path directory;
+
+	// The engine, which is also the engine of the superclass
+	private final FirstFitEngine engine;
+
+	// The journal of the calls made since the checkpoint
+	private final MemoryJournal journal;
+
+	private JournaledMemorySpace(Path directory, FirstFitEngine engine, MemoryJournal journal) {
+		super(engine);
+		this.directory = directory;
+		this.engine = engine;
+		this.journal = journal;
+	}
+
+	/**
+	 * Opens the memory space kept in the given directory, recovering it from its checkpoint
+	 * and its journal, or creates a new memory space of the given size there if the
+	 * directory holds neither.
+	 *
+	 * @param directory
+	 *            the directory, which must exist
+	 * @param maxSize
+	 *            the size of a new memory space; ignored if the directory has a checkpoint
+	 * @return the memory space
+	 * @throws IOException
+	 *         if the files cannot be read or written, or the checkpoint and the journal do
+	 *         not fit together
+	 */
+	public static JournaledMemorySpace open(Path directory, int maxSize) throws IOException {
+		Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+		FirstFitEngine engine;
+		long sequence = 0;
+		if (Files.exists(checkpoint)) {
+			try (FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+				SnapshotInput in = new SnapshotInput(channel);
+				if (in.readInt() != CHECKPOINT_MAGIC) {
+					throw new IOException("not a checkpoint: " + checkpoint);
+				}
+				sequence = in.readLong();
+				engine = FirstFitEngine.readSnapshot(in);
+			}
+		} else {
+			engine = new FirstFitEngine(maxSize);
+		}
+		Path file = directory.resolve(JOURNAL_FILE);
+		long next = MemoryJournal.replay(file, sequence, engine);
+		return new JournaledMemorySpace(directory, engine, new MemoryJournal(file, next));
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), and journals the call if
+	 * it succeeds.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	@Override
+	public int malloc(int length) {
+		int address = super.malloc(length);
+		if (address >= 0) {
+			journal.appendMalloc(length, address);
+		}
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and journals
+	 * the call.
+	 *
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	@Override
+	public void free(int address) {
+		super.free(address);
+		journal.appendFree(address);
+	}
+
+	/**
+	 * Performs defragmantation of this memory space, and journals the call.
+	 */
+	@Override
+	public void defrag() {
+		super.defrag();
+		journal.appendDefrag();
+	}
+
+	/**
+	 * Waits until all the calls made so far are durable.
+	 *
+	 * @throws IOException
+	 *         if the journal could not be written
+	 */
+	public void sync() throws IOException {
+		journal.sync();
+	}
+
+	/**
+	 * Writes the state of this memory space to a new checkpoint, and empties the journal.
+	 * The checkpoint is written to a temporary file, forced to the storage device, and then
+	 * renamed, so a crash leaves either the old checkpoint or the new one. The directory is
+	 * forced after the rename, and only then is the journal emptied.
+	 *
+	 * @throws IOException
+	 *         if the files cannot be written
+	 */
+	public void checkpoint() throws IOException {
+		journal.sync();
+		Path file = directory.resolve(CHECKPOINT_FILE);
+		Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			SnapshotOutput out = new SnapshotOutput(channel);
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeLong(journal.getAppendedSequence());
+			engine.writeSnapshot(out);
+			out.flush();
+			channel.force(false);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		// The rename must be durable before the journal is emptied, or a crash could keep
+		// the empty journal and lose the new checkpoint
+		forceDirectory(directory);
+		journal.truncate();
+	}
+
+	// Forces the entries of the given directory to the storage device. A directory cannot
+	// be opened as a channel on Windows, where a rename is durable once it returns.
+	private static void forceDirectory(Path directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			if (File.separatorChar == '\\') {
+				return;
+			}
+			throw e;
+		}
+		try (FileChannel open = channel) {
+			open.force(true);
+		}
+	}
+
+	/**
+	 * Gets the journal of this memory space, e.g. to read its statistics.
+	 * @return The journal.
+	 */
+	public MemoryJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Makes all the calls made so far durable, and closes the journal. The memory space
+	 * may not be changed afterwards.
+	 *
+	 * @throws IOException
+	 *         if the journal could not be written
+	 */
+	public void close() throws IOException {
+		journal.close();
+	}
+}
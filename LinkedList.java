@@ -6,6 +6,14 @@ public class LinkedList {
 	private Node first; // pointer to the first element of this list
 	private Node last;  // pointer to the last element of this list
 	private int size;   // number of elements in this list
+
+	// The node returned by the last call to getNode, and its index, or null if the
+	// list changed since then. A call with the same or a later index starts walking
+	// from this node, so visiting the nodes with increasing indexes takes O(n) time.
+	// Appending a node does not change the indexes of the existing nodes, and keeps
+	// the finger; any other change to the list invalidates it.
+	private Node finger;
+	private int fingerIndex;
 	
 	/**
 	 * Constructs a new list.
@@ -40,7 +48,8 @@ public class LinkedList {
 		return this.size;
 	}
 	/**
-	 * Gets the node located at the given index in this list. 
+	 * Gets the node located at the given index in this list. The walk starts from
+	 * the node returned by the previous call, if the index is not before it.
 	 * 
 	 * @param index
 	 *        the index of the node to retrieve, between 0 and size
@@ -54,9 +63,16 @@ public class LinkedList {
 		}
 
         Node current = first;
-        for (int i = 0; i < index; i++) {
+        int i = 0;
+        if (finger != null && fingerIndex <= index) {
+            current = finger;
+            i = fingerIndex;
+        }
+        for (; i < index; i++) {
             current = current.next;
         }
+        finger = current;
+        fingerIndex = index;
         return current;
     }
 
@@ -93,6 +109,7 @@ public class LinkedList {
 					n.next = temp.next;
 					temp.next = n;
 					size ++;
+					finger = null;
 				}
     }
 	/**
@@ -132,6 +149,7 @@ public class LinkedList {
             this.first = newNode;
         }
         size++;
+        finger = null;
     }
 
 	/**
@@ -191,6 +209,7 @@ public class LinkedList {
 				last = null;
 			}
 			size--;
+			finger = null;
 			return;
 		}
 	
@@ -202,6 +221,7 @@ public class LinkedList {
 					last = current;
 				}
 				size--;
+				finger = null;
 				return;
 			}
 			current = current.next;
@@ -227,6 +247,7 @@ public class LinkedList {
 				last = null;
 			}
 			size--;
+			finger = null;
 			return;
 		}
 	
@@ -239,6 +260,7 @@ public class LinkedList {
 		}
 	
 		size--;
+		finger = null;
 	}
 	/**
 	 * Removes from this list the node pointing to the given memory block.
@@ -262,6 +284,7 @@ public class LinkedList {
 				last = null;
 			}
 			size--;
+			finger = null;
 			return;
 		}
 	
@@ -273,6 +296,7 @@ public class LinkedList {
 					last = current;
 				}
 				size--;
+				finger = null;
 				return;
 			}
 			current = current.next;
@@ -0,0 +1,120 @@
+/**
+ * Measures the tail latency of malloc and free when many threads contend for one
+ * engine. Each thread allocates a number of blocks, and then repeatedly frees one of
+ * them and allocates a block of random length in its place, timing every call. The workload runs on a first-fit tree
+ * engine and on a LockFreeEngine, each behind a synchronized wrapper, and on a
+ * LockFreeEngine called directly. The program prints the median, 99th, 99.9th
+ * percentile and maximal latency over the calls of all the threads.
+ * <p>
+ * The threads contend only if they run at the same time, so the numbers mean something
+ * only on a machine with about as many cores as threads. With fewer cores, most calls
+ * run while the other threads are descheduled, and the differences between the engines
+ * are mostly the costs of their locks and compare-and-sets.
+ * <p>
+ * Usage: java LockFreeBenchmark [threads] [operationsPerThread]
+ */
+public class LockFreeBenchmark {
+
+	// The largest block length requested by the workload
+	private static final int MAX_LENGTH = 64;
+
+	// The number of blocks that each thread keeps live
+	private static final int LIVE_BLOCKS = 64;
+
+	// The number of untimed rounds that run before the measured one
+	private static final int WARMUP_ROUNDS = 2;
+
+	// An engine whose calls are serialized by one lock
+	private static class SynchronizedEngine implements AllocatorEngine {
+		private final AllocatorEngine engine;
+
+		SynchronizedEngine(AllocatorEngine engine) {
+			this.engine = engine;
+		}
+
+		public synchronized int malloc(int length) {
+			return engine.malloc(length);
+		}
+
+		public synchronized void free(int address) {
+			engine.free(address);
+		}
+
+		public synchronized void defrag() {
+			engine.defrag();
+		}
+
+		@Override
+		public synchronized String toString() {
+			return engine.toString();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		System.out.println("threads: " + threads + ", operations per thread: " + operations);
+		System.out.printf("%-22s %10s %10s %10s %10s%n", "engine", "p50 ns", "p99 ns", "p99.9 ns", "max ns");
+		String[] names = { "synchronized tree", "synchronized lock-free", "lock-free" };
+		int maxSize = 4 * threads * LIVE_BLOCKS * MAX_LENGTH;
+		long[] latencies = new long[2 * threads * operations];
+		for (String name : names) {
+			for (int i = 0; i <= WARMUP_ROUNDS; i++) {
+				AllocatorEngine engine;
+				if (name.equals("synchronized tree")) {
+					engine = new SynchronizedEngine(new FirstFitTreeEngine(maxSize));
+				} else if (name.equals("synchronized lock-free")) {
+					engine = new SynchronizedEngine(new LockFreeEngine(maxSize));
+				} else {
+					engine = new LockFreeEngine(maxSize);
+				}
+				run(engine, threads, latencies);
+			}
+			java.util.Arrays.sort(latencies);
+			System.out.printf("%-22s %10d %10d %10d %10d%n", name,
+					percentile(latencies, 50), percentile(latencies, 99),
+					percentile(latencies, 99.9), latencies[latencies.length - 1]);
+		}
+	}
+
+	// Runs the workload on the given engine with the given number of threads, and stores
+	// the latency of each call in the given array.
+	private static void run(AllocatorEngine engine, int threads, long[] latencies)
+			throws InterruptedException {
+		int callsPerThread = latencies.length / threads;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			int first = t * callsPerThread;
+			workers[t] = new Thread(() -> {
+				java.util.Random random = new java.util.Random(first);
+				int[] live = new int[LIVE_BLOCKS];
+				for (int slot = 0; slot < LIVE_BLOCKS; slot++) {
+					live[slot] = engine.malloc(1 + random.nextInt(MAX_LENGTH));
+				}
+				for (int i = first; i < first + callsPerThread; i += 2) {
+					int slot = random.nextInt(LIVE_BLOCKS);
+					int length = 1 + random.nextInt(MAX_LENGTH);
+					long start = System.nanoTime();
+					engine.free(live[slot]);
+					long middle = System.nanoTime();
+					live[slot] = engine.malloc(length);
+					long end = System.nanoTime();
+					latencies[i] = middle - start;
+					latencies[i + 1] = end - middle;
+				}
+			});
+		}
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	// Returns the given percentile of the given sorted latencies.
+	private static long percentile(long[] sorted, double percent) {
+		int index = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
@@ -0,0 +1,323 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A non-blocking allocator engine, whose malloc and free may be called by many threads
+ * at once without any lock. Requests are rounded up to a power of two words (their size
+ * class), and the free blocks of each class are kept on a Treiber stack: a singly linked
+ * list whose head is replaced by VarHandle compare-and-set. Blocks that were never used
+ * are carved from the top of the memory space, by compare-and-set on a bump pointer.
+ * Blocks are not split or merged while threads use the engine, so a freed block is only
+ * reused for its own class; when its class and the top are both exhausted, a request
+ * takes a free block of a larger class whole.
+ * <p>
+ * The stack of the class, the top and the stacks of the larger classes are tried one
+ * after the other, so a block may be pushed on a stack that was already found empty.
+ * Before malloc fails, it therefore reads the stamps of the stacks it tried, tries them
+ * all again, and reads the stamps once more. If no stamp changed, the stacks were all
+ * empty at once, at the end of the second try, and the top was too low then as well,
+ * since it only grows. Otherwise it tries again. So a malloc fails only if there was a
+ * moment during the call when no block of its class or larger was free, and the engine
+ * stays linearizable.
+ * <p>
+ * The head of each stack packs the address of the top block with a stamp that grows
+ * with every change of the head. A thread that read the head, and was delayed while
+ * other threads popped that block and pushed it back, fails its compare-and-set on the
+ * stamp instead of installing a stale next link (the ABA problem). The links and the
+ * block metadata are int arrays indexed by address, so no objects are allocated and
+ * there is nothing for a reclamation scheme to retire.
+ * <p>
+ * Freeing an address that is not the base address of an allocated block, including a
+ * second free of the same block, is ignored, and no exception is thrown when no block
+ * is allocated. defrag and toString must not run while other threads use the engine.
+ */
+public class LockFreeEngine implements AllocatorEngine {
+
+	// The number of size classes: lengths 1, 2, 4, ... 2^30
+	private static final int CLASS_COUNT = 31;
+
+	// The distance between the heads of two stacks in the heads array, so that they do
+	// not share a cache line
+	private static final int HEAD_SPACING = 8;
+
+	// The states of a base address
+	private static final int FREE = 0;
+	private static final int ALLOCATED = 1;
+
+	private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final VarHandle TOP;
+
+	static {
+		try {
+			TOP = MethodHandles.lookup().findVarHandle(LockFreeEngine.class, "top", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	// The size of the memory space
+	private final int maxSize;
+
+	// heads[c * HEAD_SPACING] holds the stamp of stack c in its high 32 bits, and the
+	// address of its top block + 1 (0 if the stack is empty) in its low 32 bits
+	private final long[] heads = new long[CLASS_COUNT * HEAD_SPACING];
+
+	// nexts[a] is the address of the block below the free block at address a on its stack, or -1
+	private final int[] nexts;
+
+	// states[a] is ALLOCATED if a block that starts at address a was handed out by
+	// malloc and not freed yet, and FREE otherwise
+	private final int[] states;
+
+	// classes[a] is the size class of the block that starts at address a
+	private final byte[] classes;
+
+	// lengths[a] is the requested length of the allocated block that starts at address a
+	private final int[] lengths;
+
+	// The address where the memory that was never used begins
+	private volatile int top;
+
+	// Runs between the read of a head or of the top and the compare-and-set that updates
+	// it, and between the steps of a malloc, if set; tests make it yield, so that threads
+	// interleave there even on one CPU
+	private Runnable interleaving;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public LockFreeEngine(int maxSize) {
+		this.maxSize = maxSize;
+		nexts = new int[maxSize];
+		states = new int[maxSize];
+		classes = new byte[maxSize];
+		lengths = new int[maxSize];
+	}
+
+	/**
+	 * Sets an action that runs between the read of a stack head or of the top and the
+	 * compare-and-set that updates it, and between the steps of a malloc, or null for none. Must be called before the
+	 * threads that use the engine are started.
+	 */
+	void setInterleaving(Runnable interleaving) {
+		this.interleaving = interleaving;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), rounded up to a power
+	 * of two: from the stack of its size class, else from the top of the memory space,
+	 * else from the stack of the smallest larger class that has a block.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0 || length > maxSize) {
+			return -1;
+		}
+		if (length == 0) {
+			length = 1;
+		}
+		int sizeClass = classOf(length);
+		if (sizeClass >= CLASS_COUNT) {
+			return -1;
+		}
+		int address = take(sizeClass);
+		if (address < 0) {
+			long[] stamps = new long[CLASS_COUNT];
+			do {
+				readHeads(sizeClass, stamps);
+				address = take(sizeClass);
+			} while (address < 0 && headsChanged(sizeClass, stamps));
+			if (address < 0) {
+				return -1;
+			}
+		}
+		lengths[address] = length;
+		INTS.setVolatile(states, address, ALLOCATED);
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, by pushing it
+	 * on the stack of its size class.
+	 *
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		if (address < 0 || address >= maxSize) {
+			return;
+		}
+		// Only one of several threads that free the same block gets past this point
+		if (!INTS.compareAndSet(states, address, ALLOCATED, FREE)) {
+			return;
+		}
+		push(classes[address], address);
+	}
+
+	/**
+	 * Merges adjacent free blocks, gives the free blocks at the top back to the memory
+	 * that was never used, and splits the other merged blocks into power-of-two blocks
+	 * on the stacks of their classes. Must not run while other threads use the engine.
+	 */
+	public void defrag() {
+		java.util.Arrays.fill(heads, 0);
+		int end = top;
+		int runStart = -1;
+		for (int address = 0; address < end; address += 1 << classes[address]) {
+			if (states[address] == FREE) {
+				if (runStart < 0) {
+					runStart = address;
+				}
+			} else if (runStart >= 0) {
+				pushRun(runStart, address);
+				runStart = -1;
+			}
+		}
+		top = (runStart >= 0) ? runStart : end;
+	}
+
+	/**
+	 * A textual representation of the free blocks and the allocated blocks of this engine,
+	 * both in address order, for debugging purposes. A free block is shown with the length
+	 * of its size class, and the memory that was never used is shown as one free block.
+	 * Must not run while other threads use the engine.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder free = new StringBuilder();
+		StringBuilder used = new StringBuilder();
+		int end = top;
+		for (int address = 0; address < end; address += 1 << classes[address]) {
+			if (states[address] == ALLOCATED) {
+				used.append(new MemoryBlock(address, lengths[address])).append(" ");
+			} else {
+				free.append(new MemoryBlock(address, 1 << classes[address])).append(" ");
+			}
+		}
+		if (end < maxSize) {
+			free.append(new MemoryBlock(end, maxSize - end)).append(" ");
+		}
+		return free + "\n" + used;
+	}
+
+	// Takes a block of the given class, from its stack, else from the top, else from the
+	// stack of the smallest larger class that has a block, and returns its address, or -1.
+	private int take(int sizeClass) {
+		int address = pop(sizeClass);
+		if (address < 0) {
+			interleave();
+			address = carve(sizeClass);
+		}
+		for (int larger = sizeClass + 1; address < 0 && larger < CLASS_COUNT; larger++) {
+			interleave();
+			address = pop(larger);
+		}
+		return address;
+	}
+
+	// Reads the heads of the stacks of the given class and the larger classes into the
+	// given array.
+	private void readHeads(int sizeClass, long[] stamps) {
+		for (int c = sizeClass; c < CLASS_COUNT; c++) {
+			stamps[c] = (long) LONGS.getVolatile(heads, c * HEAD_SPACING);
+		}
+	}
+
+	// Tells whether a head of the stacks of the given class and the larger classes has
+	// changed since it was read into the given array.
+	private boolean headsChanged(int sizeClass, long[] stamps) {
+		for (int c = sizeClass; c < CLASS_COUNT; c++) {
+			if ((long) LONGS.getVolatile(heads, c * HEAD_SPACING) != stamps[c]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Pops the top block of the stack of the given class, and returns its address, or
+	// -1 if the stack is empty.
+	private int pop(int sizeClass) {
+		int index = sizeClass * HEAD_SPACING;
+		while (true) {
+			long head = (long) LONGS.getVolatile(heads, index);
+			int address = (int) head - 1;
+			if (address < 0) {
+				return -1;
+			}
+			// The link may be stale if the block was popped meanwhile, but then the
+			// stamp has changed and the compare-and-set fails
+			int next = (int) INTS.getAcquire(nexts, address);
+			interleave();
+			if (LONGS.compareAndSet(heads, index, head, pack(head, next))) {
+				return address;
+			}
+		}
+	}
+
+	// Pushes the block at the given address on the stack of the given class.
+	private void push(int sizeClass, int address) {
+		int index = sizeClass * HEAD_SPACING;
+		while (true) {
+			long head = (long) LONGS.getVolatile(heads, index);
+			INTS.setRelease(nexts, address, (int) head - 1);
+			interleave();
+			if (LONGS.compareAndSet(heads, index, head, pack(head, address))) {
+				return;
+			}
+		}
+	}
+
+	// Runs the interleaving action, if there is one.
+	private void interleave() {
+		if (interleaving != null) {
+			interleaving.run();
+		}
+	}
+
+	// Returns the head that follows the given head, with the given top address.
+	private static long pack(long head, int address) {
+		return (((head >>> 32) + 1) << 32) | ((address + 1) & 0xFFFFFFFFL);
+	}
+
+	// Takes a block of the given class from the memory that was never used, and returns
+	// its address, or -1 if there is not enough of it left.
+	private int carve(int sizeClass) {
+		int size = 1 << sizeClass;
+		while (true) {
+			int address = top;
+			if ((long) address + size > maxSize) {
+				return -1;
+			}
+			interleave();
+			if (TOP.compareAndSet(this, address, address + size)) {
+				classes[address] = (byte) sizeClass;
+				return address;
+			}
+		}
+	}
+
+	// Splits the free words from the given start to the given end into the largest
+	// power-of-two blocks, and pushes them on the stacks of their classes.
+	private void pushRun(int start, int end) {
+		while (start < end) {
+			int sizeClass = 31 - Integer.numberOfLeadingZeros(end - start);
+			classes[start] = (byte) sizeClass;
+			states[start] = FREE;
+			push(sizeClass, start);
+			start += 1 << sizeClass;
+		}
+	}
+
+	// Returns the size class of the given positive length: the log of the length
+	// rounded up to a power of two.
+	private static int classOf(int length) {
+		return (length <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+}
@@ -0,0 +1,537 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the malloc, free and defrag calls of a memory space, from
+ * which the state of the memory space can be rebuilt after a crash. Each call is a record,
+ * numbered by its sequence: the number of records that were appended before it since the
+ * journal was first created.
+ * <p>
+ * The thread that appends a record only copies it into a buffer in memory, and returns.
+ * A writer thread takes all the records in the buffer at once, writes them to the file as
+ * one batch, and forces the file to the storage device; the records appended while it
+ * does so form the next batch (group commit). So a record is durable a little after it
+ * is appended, and the cost of forcing the file is shared by all the records of a batch.
+ * A caller that needs its records to be durable calls sync. When the writer falls more
+ * than MAX_PENDING_RECORDS behind, append waits for it.
+ * <p>
+ * A batch is stored as a frame: the length of its payload and the CRC-32 of its payload,
+ * four bytes each, followed by the payload, which is the sequence of its first record
+ * (eight bytes) and its records. A record is a varint operation code followed by varint
+ * arguments: the length and the base address of a malloc, the zig-zag encoded address of
+ * a free, and none for a defrag. A crash may leave a partial frame at the end of the file;
+ * replay stops at it, and cuts it off the file. A bad frame that is followed by a valid
+ * frame is not the trace of a crash but of corruption, and replay fails instead of
+ * cutting off the valid frames.
+ */
+public class MemoryJournal {
+
+	/** The operation code of a malloc record. */
+	public static final int MALLOC = 1;
+
+	/** The operation code of a free record. */
+	public static final int FREE = 2;
+
+	/** The operation code of a defrag record. */
+	public static final int DEFRAG = 3;
+
+	/** The number of records that may wait for the writer before append waits as well. */
+	public static final int MAX_PENDING_RECORDS = 1 << 16;
+
+	// The number of ints in the buffer for each record: the operation code and two arguments
+	private static final int RECORD_INTS = 3;
+
+	// The longest encoding of a record, in bytes
+	private static final int MAX_RECORD_BYTES = 15;
+
+	// The length of the header of a frame, and of the sequence that begins its payload
+	private static final int HEADER_BYTES = 2 * Integer.BYTES;
+	private static final int SEQUENCE_BYTES = Long.BYTES;
+
+	// The number of bytes that are read at a time when searching for a valid frame
+	private static final int SCAN_BYTES = 1 << 16;
+
+	// The journal file, opened for appending
+	private final FileChannel channel;
+
+	// Guards the fields below, which are shared by the appending threads and the writer
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition pendingAppended = lock.newCondition();
+	private final Condition batchWritten = lock.newCondition();
+
+	// The records that were appended and not taken by the writer, RECORD_INTS ints each
+	private int[] pending = new int[RECORD_INTS * 1024];
+	private int pendingRecords;
+
+	// The array that the writer swaps with pending when it takes a batch
+	private int[] spare = new int[RECORD_INTS * 1024];
+
+	// The sequence of the next record to be appended, and the number of durable records
+	private long appended;
+	private long durable;
+
+	// The number of batches written, and the error that stopped the writer, if any
+	private long batches;
+	private IOException failure;
+	private boolean closed;
+
+	// The thread that writes the batches
+	private final Thread writer;
+
+	/**
+	 * Opens the given journal file for appending, creating it if it does not exist, and
+	 * starts its writer thread. The next record appended gets the given sequence, which is
+	 * the one returned by replay.
+	 *
+	 * @param file
+	 *            the journal file
+	 * @param nextSequence
+	 *            the sequence of the next record
+	 * @throws IOException
+	 *         if the file cannot be opened
+	 */
+	public MemoryJournal(Path file, long nextSequence) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		appended = nextSequence;
+		durable = nextSequence;
+		writer = new Thread(this::writeBatches, "memory-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Appends a malloc record.
+	 *
+	 * @param length
+	 *            the requested length
+	 * @param address
+	 *            the base address that malloc returned
+	 * @return the sequence of the record
+	 * @throws UncheckedIOException
+	 *         if the journal could not be written
+	 */
+	public long appendMalloc(int length, int address) {
+		return append(MALLOC, length, address);
+	}
+
+	/**
+	 * Appends a free record.
+	 *
+	 * @param address
+	 *            the address that was freed
+	 * @return the sequence of the record
+	 * @throws UncheckedIOException
+	 *         if the journal could not be written
+	 */
+	public long appendFree(int address) {
+		return append(FREE, address, 0);
+	}
+
+	/**
+	 * Appends a defrag record.
+	 *
+	 * @return the sequence of the record
+	 * @throws UncheckedIOException
+	 *         if the journal could not be written
+	 */
+	public long appendDefrag() {
+		return append(DEFRAG, 0, 0);
+	}
+
+	/**
+	 * Waits until all the records appended so far are durable.
+	 *
+	 * @throws IOException
+	 *         if the journal could not be written, or the wait was interrupted
+	 */
+	public void sync() throws IOException {
+		lock.lock();
+		try {
+			long target = appended;
+			while (durable < target && failure == null) {
+				batchWritten.await();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the journal");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes all the records appended so far durable, and then removes them from the file,
+	 * once the memory space was written to a checkpoint that holds their effect. The
+	 * sequence of the next record is not changed. Must not be called while other threads
+	 * append records.
+	 *
+	 * @throws IOException
+	 *         if the journal could not be written
+	 */
+	public void truncate() throws IOException {
+		sync();
+		lock.lock();
+		try {
+			// The writer touches the channel only while it has a batch, and it has none
+			channel.truncate(0);
+			channel.force(true);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes all the records appended so far durable, stops the writer thread, and closes
+	 * the file. Records may not be appended afterwards.
+	 *
+	 * @throws IOException
+	 *         if the journal could not be written
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			pendingAppended.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while closing the journal");
+		} finally {
+			channel.close();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Gets the sequence of the next record to be appended.
+	 * @return The number of records appended since the journal was first created.
+	 */
+	public long getAppendedSequence() {
+		lock.lock();
+		try {
+			return appended;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the sequence of the first record that is not durable yet.
+	 * @return The number of durable records since the journal was first created.
+	 */
+	public long getDurableSequence() {
+		lock.lock();
+		try {
+			return durable;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of batches written by this journal since it was opened.
+	 * @return The number of batches.
+	 */
+	public long getBatchCount() {
+		lock.lock();
+		try {
+			return batches;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Applies the records of the given journal file, from the given sequence on, to the
+	 * given engine, and cuts off a partial or corrupt frame at the end of the file. Records
+	 * before the given sequence are skipped, since the checkpoint that the engine was
+	 * restored from already holds their effect. A file that does not exist has no records.
+	 *
+	 * @param file
+	 *            the journal file
+	 * @param fromSequence
+	 *            the sequence of the first record to apply
+	 * @param engine
+	 *            the engine, in the state of the checkpoint
+	 * @return the sequence of the record that follows the last record in the file, or the
+	 *         given sequence if there is none
+	 * @throws IOException
+	 *         if the file cannot be read, if a bad frame is followed by a valid one, if
+	 *         records are missing between the checkpoint and the journal, or if a malloc
+	 *         does not return the address it returned before
+	 */
+	public static long replay(Path file, long fromSequence, AllocatorEngine engine) throws IOException {
+		if (!Files.exists(file)) {
+			return fromSequence;
+		}
+		long next = fromSequence;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			SnapshotInput in = new SnapshotInput(channel);
+			long end = 0;
+			CRC32 crc = new CRC32();
+			while (true) {
+				ByteBuffer payload;
+				try {
+					int length = in.readInt();
+					int checksum = in.readInt();
+					if (length < SEQUENCE_BYTES || length > channel.size()) {
+						break;
+					}
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					crc.reset();
+					crc.update(bytes);
+					if ((int) crc.getValue() != checksum) {
+						break;
+					}
+					payload = ByteBuffer.wrap(bytes);
+				} catch (EOFException e) {
+					break;
+				}
+				long sequence = payload.getLong();
+				if (sequence > next) {
+					throw new IOException("journal records " + next + " to " + (sequence - 1) + " are missing");
+				}
+				while (payload.hasRemaining()) {
+					if (sequence >= next) {
+						apply(payload, engine, sequence);
+						next = sequence + 1;
+					} else {
+						skip(payload);
+					}
+					sequence++;
+				}
+				end = in.position();
+			}
+			if (end < channel.size()) {
+				if (hasFrameAfter(channel, end)) {
+					throw new IOException("journal " + file + " is corrupt at byte " + end
+							+ ", and has valid frames after it");
+				}
+				channel.truncate(end);
+				channel.force(true);
+			}
+		}
+		return next;
+	}
+
+	// Tells whether a valid frame begins anywhere after the bad frame at the given position.
+	// A crash leaves the bad frame last, so one that is followed by a valid frame was
+	// corrupted after it was written. The rest of the file is scanned through a window of
+	// SCAN_BYTES, and the payload of a frame that does not fit in it is checked in pieces.
+	private static boolean hasFrameAfter(FileChannel channel, long position) throws IOException {
+		long size = channel.size();
+		ByteBuffer window = ByteBuffer.allocate(SCAN_BYTES);
+		ByteBuffer piece = null;
+		long start = position + 1;
+		window.limit(0);
+		CRC32 crc = new CRC32();
+		for (long at = position + 1; at + HEADER_BYTES + SEQUENCE_BYTES <= size; at++) {
+			if (at + HEADER_BYTES + SEQUENCE_BYTES > start + window.limit()) {
+				start = at;
+				window.clear();
+				readAt(channel, window, start);
+				window.flip();
+			}
+			int offset = (int) (at - start);
+			int length = window.getInt(offset);
+			if (length < SEQUENCE_BYTES || length > size - at - HEADER_BYTES
+					|| window.getLong(offset + HEADER_BYTES) < 0) {
+				continue;
+			}
+			crc.reset();
+			if (length <= window.limit() - offset - HEADER_BYTES) {
+				crc.update(window.array(), offset + HEADER_BYTES, length);
+			} else {
+				if (piece == null) {
+					piece = ByteBuffer.allocate(SCAN_BYTES);
+				}
+				for (long from = at + HEADER_BYTES, end = from + length; from < end; from += piece.limit()) {
+					piece.clear();
+					piece.limit((int) Math.min(end - from, SCAN_BYTES));
+					readAt(channel, piece, from);
+					piece.flip();
+					crc.update(piece);
+				}
+			}
+			if ((int) crc.getValue() == window.getInt(offset + Integer.BYTES)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Reads the given channel from the given position until the buffer is full or the end
+	// of the channel is reached.
+	private static void readAt(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int first = buffer.position();
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position() - first) >= 0) {
+			// keep reading
+		}
+	}
+
+	// Applies the next record of the given payload to the given engine.
+	private static void apply(ByteBuffer payload, AllocatorEngine engine, long sequence) throws IOException {
+		int operation = SnapshotInput.getVarInt(payload);
+		switch (operation) {
+			case MALLOC:
+				int length = SnapshotInput.getVarInt(payload);
+				int address = SnapshotInput.getVarInt(payload);
+				int replayed = engine.malloc(length);
+				if (replayed != address) {
+					throw new IOException("journal record " + sequence + ": malloc(" + length + ") returned "
+							+ replayed + " instead of " + address);
+				}
+				break;
+			case FREE:
+				engine.free(SnapshotInput.unZigZag(SnapshotInput.getVarInt(payload)));
+				break;
+			case DEFRAG:
+				engine.defrag();
+				break;
+			default:
+				throw new IOException("journal record " + sequence + ": unknown operation " + operation);
+		}
+	}
+
+	// Skips the next record of the given payload.
+	private static void skip(ByteBuffer payload) throws IOException {
+		int operation = SnapshotInput.getVarInt(payload);
+		int arguments = (operation == MALLOC) ? 2 : (operation == FREE) ? 1 : 0;
+		for (int i = 0; i < arguments; i++) {
+			SnapshotInput.getVarInt(payload);
+		}
+	}
+
+	// Copies a record into the pending buffer.
+	private long append(int operation, int first, int second) {
+		lock.lock();
+		try {
+			while (pendingRecords >= MAX_PENDING_RECORDS && failure == null && !closed) {
+				batchWritten.awaitUninterruptibly();
+			}
+			if (failure != null) {
+				throw new UncheckedIOException("the journal could not be written", failure);
+			}
+			if (closed) {
+				throw new IllegalStateException("the journal is closed");
+			}
+			int index = pendingRecords * RECORD_INTS;
+			if (index == pending.length) {
+				pending = java.util.Arrays.copyOf(pending, 2 * pending.length);
+			}
+			pending[index] = operation;
+			pending[index + 1] = first;
+			pending[index + 2] = second;
+			if (pendingRecords++ == 0) {
+				pendingAppended.signal();
+			}
+			return appended++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// The loop of the writer thread: takes all the pending records, writes and forces them
+	// as one batch, and repeats until the journal is closed and no records are pending.
+	private void writeBatches() {
+		ByteBuffer frame = ByteBuffer.allocateDirect(HEADER_BYTES + SEQUENCE_BYTES + 1024 * MAX_RECORD_BYTES);
+		CRC32 crc = new CRC32();
+		while (true) {
+			int[] records;
+			int count;
+			long sequence;
+			lock.lock();
+			try {
+				while (pendingRecords == 0 && !closed) {
+					pendingAppended.awaitUninterruptibly();
+				}
+				if (pendingRecords == 0) {
+					return;
+				}
+				records = pending;
+				count = pendingRecords;
+				sequence = appended - count;
+				pending = spare;
+				pendingRecords = 0;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				int capacity = HEADER_BYTES + SEQUENCE_BYTES + count * MAX_RECORD_BYTES;
+				if (frame.capacity() < capacity) {
+					frame = ByteBuffer.allocateDirect(Integer.highestOneBit(capacity - 1) << 1);
+				}
+				encode(frame, records, count, sequence, crc);
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+				channel.force(false);
+			} catch (IOException e) {
+				lock.lock();
+				try {
+					failure = e;
+					batchWritten.signalAll();
+				} finally {
+					lock.unlock();
+				}
+				return;
+			}
+			lock.lock();
+			try {
+				spare = records;
+				durable = sequence + count;
+				batches++;
+				batchWritten.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Encodes the given records as a frame in the given buffer, and flips it for writing.
+	private static void encode(ByteBuffer frame, int[] records, int count, long sequence, CRC32 crc) {
+		frame.clear();
+		frame.position(HEADER_BYTES);
+		frame.putLong(sequence);
+		for (int i = 0; i < count * RECORD_INTS; i += RECORD_INTS) {
+			int operation = records[i];
+			SnapshotOutput.putVarInt(frame, operation);
+			if (operation == MALLOC) {
+				SnapshotOutput.putVarInt(frame, records[i + 1]);
+				SnapshotOutput.putVarInt(frame, records[i + 2]);
+			} else if (operation == FREE) {
+				SnapshotOutput.putVarInt(frame, SnapshotOutput.zigZag(records[i + 1]));
+			}
+		}
+		int length = frame.position() - HEADER_BYTES;
+		frame.flip();
+		frame.position(HEADER_BYTES);
+		crc.reset();
+		crc.update(frame);
+		frame.position(0);
+		frame.putInt(length);
+		frame.putInt((int) crc.getValue());
+		frame.position(0);
+	}
+}
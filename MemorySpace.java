@@ -1,108 +1,177 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
 /**
  * Represents a managed memory space. The memory space manages a list of allocated 
  * memory blocks, and a list free memory blocks. The methods "malloc" and "free" are 
  * used, respectively, for creating new blocks and recycling existing blocks.
+ * <p>
+ * The bookkeeping itself is done by an allocator engine, which holds the data structure
+ * and the placement policy. The engine is given to the constructor, by name or as an
+ * object, or else selected by the system property "memoryspace.engine" (see
+ * AllocatorEngines). By default, the memory space uses a FirstFitEngine, which scans a
+ * single free list.
+ * <p>
+ * A memory space with a FirstFitEngine can be written to a snapshot file and restored
+ * from it, which is much faster than replaying the calls that led to its state.
  */
 public class MemorySpace {
 	
-	// A list of the memory blocks that are presently allocated
-	private LinkedList allocatedList;
+	// The engine that keeps track of the allocated and free memory blocks
+	private AllocatorEngine engine;
 
-	// A list of memory blocks that are presently free
-	private LinkedList freeList;
+	// Decides whether malloc calls defrag and retries when it fails, or null if it never does
+	private CompactionPolicy compaction;
 
 	/**
-	 * Constructs a new managed memory space of a given maximal size.
+	 * Constructs a new managed memory space of a given maximal size, whose engine is
+	 * selected by the system property "memoryspace.engine" (first-fit if not set).
 	 * 
 	 * @param maxSize
 	 *            the size of the memory space to be managed
 	 */
 	public MemorySpace(int maxSize) {
-		// initiallizes an empty list of allocated blocks.
-		allocatedList = new LinkedList();
-	    // Initializes a free list containing a single block which represents
-	    // the entire memory. The base address of this single initial block is
-	    // zero, and its length is the given memory size.
-		freeList = new LinkedList();
-		freeList.addLast(new MemoryBlock(0, maxSize));
+		this(AllocatorEngines.fromSystemProperty(maxSize));
 	}
 
 	/**
-	 * Allocates a memory block of a requested length (in words). Returns the
-	 * base address of the allocated block, or -1 if unable to allocate.
+	 * Constructs a new managed memory space of a given maximal size, with the engine of
+	 * the given name.
 	 * 
-	 * This implementation scans the freeList, looking for the first free memory block 
-	 * whose length equals at least the given length. If such a block is found, the method 
-	 * performs the following operations:
-	 * 
-	 * (1) A new memory block is constructed. The base address of the new block is set to
-	 * the base address of the found free block. The length of the new block is set to the value 
-	 * of the method's length parameter.
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param engineName
+	 *            the name of the engine, as accepted by AllocatorEngines.create
+	 */
+	public MemorySpace(int maxSize, String engineName) {
+		this(AllocatorEngines.create(engineName, maxSize));
+	}
+
+	/**
+	 * Constructs a new managed memory space whose blocks are managed by the given engine.
 	 * 
-	 * (2) The new memory block is appended to the end of the allocatedList.
+	 * @param engine
+	 *            the allocator engine, already sized to the memory space to be managed
+	 */
+	public MemorySpace(AllocatorEngine engine) {
+		if (engine == null) {
+			throw new IllegalArgumentException("engine must not be null");
+		}
+		this.engine = engine;
+	}
+
+	/**
+	 * Gets the engine of this memory space, e.g. to read its statistics.
+	 * @return The engine.
+	 */
+	public AllocatorEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Restores a memory space from a snapshot file written by snapshot.
 	 * 
-	 * (3) The base address and the length of the found free block are updated, to reflect the allocation.
-	 * For example, suppose that the requested block length is 17, and suppose that the base
-	 * address and length of the the found free block are 250 and 20, respectively.
-	 * In such a case, the base address and length of of the allocated block
-	 * are set to 250 and 17, respectively, and the base address and length
-	 * of the found free block are set to 267 and 3, respectively.
+	 * @param file
+	 *            the snapshot file
+	 * @return the restored memory space
+	 * @throws IOException
+	 *         if the file cannot be read, or does not hold a snapshot
+	 */
+	public static MemorySpace restore(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			SnapshotInput in = new SnapshotInput(channel);
+			FirstFitEngine engine = FirstFitEngine.readSnapshot(in);
+			if (!in.atEnd()) {
+				throw new IOException("unexpected bytes after the snapshot");
+			}
+			return new MemorySpace(engine);
+		}
+	}
+
+	/**
+	 * Writes the free list and the allocated list of this memory space to a snapshot file.
+	 * The snapshot is written to a temporary file next to the given one, forced to the
+	 * storage device, and then renamed to the given name, so a crash while writing leaves
+	 * the previous snapshot in place.
 	 * 
-	 * (4) The new memory block is returned.
+	 * @param file
+	 *            the snapshot file; it is replaced if it exists
+	 * @throws IOException
+	 *         if the file cannot be written
+	 * @throws UnsupportedOperationException
+	 *         if the engine of this memory space is not a FirstFitEngine
+	 */
+	public void snapshot(Path file) throws IOException {
+		if (!(engine instanceof FirstFitEngine)) {
+			throw new UnsupportedOperationException("snapshots need a FirstFitEngine, not " 
+					+ engine.getClass().getName());
+		}
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			SnapshotOutput out = new SnapshotOutput(channel);
+			((FirstFitEngine) engine).writeSnapshot(out);
+			out.flush();
+			channel.force(false);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Makes malloc ask the given policy whether to call defrag and retry when it fails.
 	 * 
-	 * If the length of the found block is exactly the same as the requested length, 
-	 * then the found block is removed from the freeList and appended to the allocatedList.
+	 * @param compaction
+	 *            the policy, which must not be used by another memory space, or null to
+	 *            make malloc give up when it fails, as it does by default
+	 */
+	public void setCompactionPolicy(CompactionPolicy compaction) {
+		this.compaction = compaction;
+	}
+
+	/**
+	 * Gets the compaction policy of this memory space, e.g. to read its metrics.
+	 * @return The policy, or null if malloc does not call defrag.
+	 */
+	public CompactionPolicy getCompactionPolicy() {
+		return compaction;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). Returns the
+	 * base address of the allocated block, or -1 if unable to allocate.
+	 * The placement of the block is decided by the engine of this memory space.
+	 * If the engine cannot allocate the block and a compaction policy is set, the
+	 * policy decides whether to call defrag and try once more.
 	 * 
 	 * @param length
 	 *        the length (in words) of the memory block that has to be allocated
 	 * @return the base address of the allocated block, or -1 if unable to allocate
 	 */
 	public int malloc(int length) {		
-		if (length < 0) {
-			return -1;
+		int address = engine.malloc(length);
+		if (address < 0 && length >= 0 && compaction != null && compaction.shouldDefrag(length)) {
+			long start = System.nanoTime();
+			defrag();
+			address = engine.malloc(length);
+			compaction.recordDefrag(length, System.nanoTime() - start, address >= 0);
 		}
-		Node current = freeList.getFirst(); 
-		for (int i = 0; i < freeList.getSize(); i++) {
-			if (current.block.length >= length) { 
-				MemoryBlock m = new MemoryBlock(current.block.baseAddress, length);
-				allocatedList.addLast(m);
-				if (current.block.length == length) {
-					freeList.remove(current);
-				}
-				else {
-					current.block.baseAddress += length;
-					current.block.length -= length;
-				}
-				return m.baseAddress;
-			}
-			current = current.next;
-		}
-		return -1;
+		return address;
 	}
 
 	/**
 	 * Frees the memory block whose base address equals the given address.
-	 * This implementation deletes the block whose base address equals the given 
-	 * address from the allocatedList, and adds it at the end of the free list. 
 	 * 
-	 * @param baseAddress
-	 *            the starting address of the block to freeList
+	 * @param address
+	 *            the starting address of the block to free
 	 */
 	public void free(int address) {
-		if (this.allocatedList.getSize() == 0) {
-			throw new IllegalArgumentException("index must be between 0 and size");
-		}
-		MemoryBlock free = null;
-		for (int i = 0; i < this.allocatedList.getSize(); i++) {
-			MemoryBlock block = this.allocatedList.getBlock(i); 
-			if (block.baseAddress == address) {
-				free = block;
-				break;
-			}
-		}
-		if (free != null) { 
-			this.allocatedList.remove(free);
-			this.freeList.addLast(free);
+		engine.free(address);
+		if (compaction != null) {
+			compaction.onFree();
 		}
 	}
 	
@@ -112,30 +181,19 @@ public class MemorySpace {
 	 */
 	@Override
 	public String toString() {
-		return freeList.toString() + "\n" + allocatedList.toString();		
+		return engine.toString();		
 	}
 	
 	/**
 	 * Performs defragmantation of this memory space.
 	 * Normally, called by malloc, when it fails to find a memory block of the requested size.
-	 * In this implementation Malloc does not call defrag.
+	 * In this implementation Malloc calls defrag only if a compaction policy is set, and
+	 * the policy expects the defrag to pay off.
 	 */
 	public void defrag() {
-		for (int i = 0; i < freeList.getSize(); i++) {
-			MemoryBlock current = freeList.getBlock(i);
-			int endAddress = current.baseAddress + current.length;
-			Node n = freeList.getFirst(); 
-			while (n != null) {
-				MemoryBlock nextBlock = n.block;
-				if (nextBlock.baseAddress == endAddress) 
-				{
-					current.length += nextBlock.length;
-					freeList.remove(n); 
-					defrag();
-					break;
-				}
-				n = n.next;
-			}
+		engine.defrag();
+		if (compaction != null) {
+			compaction.onDefrag();
 		}
 	}
 }
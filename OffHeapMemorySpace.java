@@ -0,0 +1,647 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * A managed memory space that owns real memory: an off-heap region of maxSize words of
+ * WORD_SIZE bytes each. The addresses that malloc returns are word addresses, and the
+ * bytes of a block are read and written through typed accessors that take the base
+ * address of the block and a byte offset within it. Every access is checked against the
+ * length of the block, so a block cannot read or write its neighbors, and a block that
+ * was freed cannot be accessed at all. The contents of a new block are not cleared.
+ * <p>
+ * The region is either allocated once, outside the Java heap, as direct buffers, so a
+ * pool of short-lived records kept in it creates no garbage; or it is a file mapped into
+ * memory with FileChannel.map, so the contents of the blocks live in the page cache and
+ * outlive the process (the bookkeeping of the blocks is not kept in the file). A mapped
+ * region remembers which blocks were written to, and forceDirty writes just those to the
+ * storage device. Writes through a slice cannot be seen, so a block that was sliced
+ * counts as written to until it is freed. A file may also be mapped read-only, e.g. by
+ * several processes that read what one process wrote; the blocks of that process are
+ * not known in a read-only view, so reads and slices in it are checked against the
+ * region only, and address a range of bytes from a word rather than a block.
+ * <p>
+ * The length of each allocated block is kept in an AddressIndex keyed by its base
+ * address, so the bookkeeping on the Java heap grows with the number of blocks, not with
+ * the size of the region.
+ * <p>
+ * The region is made of chunks of up to 2^CHUNK_SHIFT bytes, since a buffer holds at most
+ * 2^31 - 1 bytes, so a region may be larger than that. An access that crosses from one
+ * chunk to the next is done a byte at a time. Like MemorySpace, this class is not
+ * thread-safe.
+ */
+public class OffHeapMemorySpace extends MemorySpace {
+
+	/** The number of bytes in a word. */
+	public static final int WORD_SIZE = 8;
+
+	/** The log of the number of bytes in each chunk of the region but the last. */
+	public static final int CHUNK_SHIFT = 30;
+
+	// The number of bytes in each chunk but the last
+	private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+
+	// The memory of this memory space, in chunks
+	private final ByteBuffer[] chunks;
+
+	// Whether the region is a read-only view
+	private final boolean readOnly;
+
+	// The size of the region, in words
+	private final int maxSize;
+
+	// The addresses of the blocks that were written to since they were last forced, and
+	// of the blocks that were sliced since they were allocated, or null if the region is
+	// not mapped or is read-only
+	private final BitSet dirty;
+	private final BitSet sliced;
+
+	// Maps the base address of each allocated block to its length (in words)
+	private final AddressIndex lengths = new AddressIndex();
+
+	/**
+	 * Constructs a new off-heap memory space of a given maximal size, whose engine is
+	 * selected by the system property "memoryspace.engine" (first-fit if not set).
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed, in words
+	 */
+	public OffHeapMemorySpace(int maxSize) {
+		this(AllocatorEngines.fromSystemProperty(maxSize), maxSize);
+	}
+
+	/**
+	 * Constructs a new off-heap memory space of a given maximal size, with the engine of
+	 * the given name.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed, in words
+	 * @param engineName
+	 *            the name of the engine, as accepted by AllocatorEngines.create
+	 */
+	public OffHeapMemorySpace(int maxSize, String engineName) {
+		this(AllocatorEngines.create(engineName, maxSize), maxSize);
+	}
+
+	/**
+	 * Constructs a new memory space of a given maximal size, with the engine of the given
+	 * name, whose region is the given file mapped into memory for reading and writing.
+	 * The file is created if it does not exist, and extended to maxSize words if it is
+	 * shorter.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed, in words
+	 * @param engineName
+	 *            the name of the engine, as accepted by AllocatorEngines.create
+	 * @param file
+	 *            the file that holds the region
+	 * @throws IOException
+	 *         if the file cannot be opened or mapped
+	 */
+	public OffHeapMemorySpace(int maxSize, String engineName, Path file) throws IOException {
+		this(maxSize, engineName, file, false);
+	}
+
+	/**
+	 * Constructs a new memory space of a given maximal size, with the engine of the given
+	 * name, whose region is the given file mapped into memory, for reading and writing or
+	 * for reading only.
+	 *
+	 * @param maxSize
+	 *            the size of the memory space to be managed, in words
+	 * @param engineName
+	 *            the name of the engine, as accepted by AllocatorEngines.create
+	 * @param file
+	 *            the file that holds the region
+	 * @param readOnly
+	 *            true to map the file for reading only; it must then hold maxSize words
+	 * @throws IOException
+	 *         if the file cannot be opened or mapped
+	 * @throws IllegalArgumentException
+	 *         if the file is mapped for reading only, and is shorter than maxSize words
+	 */
+	public OffHeapMemorySpace(int maxSize, String engineName, Path file, boolean readOnly) throws IOException {
+		super(AllocatorEngines.create(engineName, maxSize));
+		this.maxSize = checkSize(maxSize);
+		this.readOnly = readOnly;
+		dirty = readOnly ? null : new BitSet();
+		sliced = readOnly ? null : new BitSet();
+		long bytes = (long) maxSize * WORD_SIZE;
+		chunks = new ByteBuffer[chunkCount(bytes)];
+		try (FileChannel channel = readOnly ? FileChannel.open(file, StandardOpenOption.READ)
+				: FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE)) {
+			if (readOnly && channel.size() < bytes) {
+				throw new IllegalArgumentException("file is shorter than max size");
+			}
+			FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+			for (int i = 0; i < chunks.length; i++) {
+				long position = i * CHUNK_BYTES;
+				chunks[i] = channel.map(mode, position, Math.min(CHUNK_BYTES, bytes - position))
+						.order(ByteOrder.nativeOrder());
+			}
+		}
+	}
+
+	private OffHeapMemorySpace(AllocatorEngine engine, int maxSize) {
+		super(engine);
+		this.maxSize = checkSize(maxSize);
+		readOnly = false;
+		dirty = null;
+		sliced = null;
+		long bytes = (long) maxSize * WORD_SIZE;
+		chunks = new ByteBuffer[chunkCount(bytes)];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = ByteBuffer.allocateDirect((int) Math.min(CHUNK_BYTES, bytes - i * CHUNK_BYTES))
+					.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). A block of length 0 has
+	 * no bytes, but still takes one word of the region, so that its address is its own.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	@Override
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		int address = super.malloc(Math.max(length, 1));
+		if (address >= 0) {
+			lengths.add(address, length);
+		}
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address. Its bytes cannot
+	 * be accessed afterwards.
+	 *
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	@Override
+	public void free(int address) {
+		super.free(address);
+		int slot = lengths.find(address);
+		if (slot >= 0) {
+			lengths.remove(slot);
+			if (dirty != null) {
+				dirty.clear(address);
+				sliced.clear(address);
+			}
+		}
+	}
+
+	/**
+	 * Returns the length in bytes of the allocated block at the given address.
+	 *
+	 * @param address
+	 *            the base address of the block
+	 * @return the number of bytes of the block
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 */
+	public long byteLength(int address) {
+		return (long) blockLength(address) * WORD_SIZE;
+	}
+
+	/**
+	 * Reads the byte at the given offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the byte is outside the block
+	 */
+	public byte getByte(int address, int offset) {
+		long position = position(address, offset, Byte.BYTES);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Byte.BYTES) {
+			return chunk.get(index);
+		}
+		return (byte) getSlow(position, Byte.BYTES);
+	}
+
+	/**
+	 * Writes a byte at the given offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the byte is outside the block
+	 */
+	public void putByte(int address, int offset, byte value) {
+		long position = position(address, offset, Byte.BYTES);
+		markDirty(address);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Byte.BYTES) {
+			chunk.put(index, value);
+		} else {
+			putSlow(position, Byte.BYTES, value);
+		}
+	}
+
+	/**
+	 * Reads the int at the given byte offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the int is not inside the block
+	 */
+	public int getInt(int address, int offset) {
+		long position = position(address, offset, Integer.BYTES);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Integer.BYTES) {
+			return chunk.getInt(index);
+		}
+		return (int) getSlow(position, Integer.BYTES);
+	}
+
+	/**
+	 * Writes an int at the given byte offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the int is not inside the block
+	 */
+	public void putInt(int address, int offset, int value) {
+		long position = position(address, offset, Integer.BYTES);
+		markDirty(address);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Integer.BYTES) {
+			chunk.putInt(index, value);
+		} else {
+			putSlow(position, Integer.BYTES, value);
+		}
+	}
+
+	/**
+	 * Reads the long at the given byte offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the long is not inside the block
+	 */
+	public long getLong(int address, int offset) {
+		long position = position(address, offset, Long.BYTES);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Long.BYTES) {
+			return chunk.getLong(index);
+		}
+		return getSlow(position, Long.BYTES);
+	}
+
+	/**
+	 * Writes a long at the given byte offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the long is not inside the block
+	 */
+	public void putLong(int address, int offset, long value) {
+		long position = position(address, offset, Long.BYTES);
+		markDirty(address);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Long.BYTES) {
+			chunk.putLong(index, value);
+		} else {
+			putSlow(position, Long.BYTES, value);
+		}
+	}
+
+	/**
+	 * Reads the double at the given byte offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the double is not inside the block
+	 */
+	public double getDouble(int address, int offset) {
+		long position = position(address, offset, Double.BYTES);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Double.BYTES) {
+			return chunk.getDouble(index);
+		}
+		return Double.longBitsToDouble(getSlow(position, Double.BYTES));
+	}
+
+	/**
+	 * Writes a double at the given byte offset in the block at the given address.
+	 *
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the double is not inside the block
+	 */
+	public void putDouble(int address, int offset, double value) {
+		long position = position(address, offset, Double.BYTES);
+		markDirty(address);
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		int index = (int) (position & (CHUNK_BYTES - 1));
+		if (index <= chunk.capacity() - Double.BYTES) {
+			chunk.putDouble(index, value);
+		} else {
+			putSlow(position, Double.BYTES, Double.doubleToRawLongBits(value));
+		}
+	}
+
+	/**
+	 * Copies bytes from the block at the given address to an array.
+	 *
+	 * @param address
+	 *            the base address of the block
+	 * @param offset
+	 *            the offset in the block of the first byte to copy
+	 * @param dst
+	 *            the array to copy to
+	 * @param dstOffset
+	 *            the index in the array of the first byte
+	 * @param length
+	 *            the number of bytes to copy
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the bytes are not inside the block, or not inside the array
+	 */
+	public void read(int address, int offset, byte[] dst, int dstOffset, int length) {
+		long position = position(address, offset, length);
+		Objects.checkFromIndexSize(dstOffset, length, dst.length);
+		while (length > 0) {
+			ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+			int index = (int) (position & (CHUNK_BYTES - 1));
+			int piece = Math.min(length, chunk.capacity() - index);
+			chunk.get(index, dst, dstOffset, piece);
+			position += piece;
+			dstOffset += piece;
+			length -= piece;
+		}
+	}
+
+	/**
+	 * Copies bytes from an array to the block at the given address.
+	 *
+	 * @param address
+	 *            the base address of the block
+	 * @param offset
+	 *            the offset in the block of the first byte to write
+	 * @param src
+	 *            the array to copy from
+	 * @param srcOffset
+	 *            the index in the array of the first byte
+	 * @param length
+	 *            the number of bytes to copy
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address
+	 * @throws IndexOutOfBoundsException
+	 *         if the bytes are not inside the block, or not inside the array
+	 */
+	public void write(int address, int offset, byte[] src, int srcOffset, int length) {
+		long position = position(address, offset, length);
+		Objects.checkFromIndexSize(srcOffset, length, src.length);
+		markDirty(address);
+		while (length > 0) {
+			ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+			int index = (int) (position & (CHUNK_BYTES - 1));
+			int piece = Math.min(length, chunk.capacity() - index);
+			chunk.put(index, src, srcOffset, piece);
+			position += piece;
+			srcOffset += piece;
+			length -= piece;
+		}
+	}
+
+	/**
+	 * Copies bytes from one block to another, or within a block. The source and the
+	 * destination may overlap.
+	 *
+	 * @param srcAddress
+	 *            the base address of the source block
+	 * @param srcOffset
+	 *            the offset in the source block of the first byte to copy
+	 * @param dstAddress
+	 *            the base address of the destination block
+	 * @param dstOffset
+	 *            the offset in the destination block of the first byte to write
+	 * @param length
+	 *            the number of bytes to copy
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at one of the addresses
+	 * @throws IndexOutOfBoundsException
+	 *         if the bytes are not inside the blocks
+	 */
+	public void copy(int srcAddress, int srcOffset, int dstAddress, int dstOffset, int length) {
+		long from = position(srcAddress, srcOffset, length);
+		long to = position(dstAddress, dstOffset, length);
+		markDirty(dstAddress);
+		// Copy backwards when the destination overlaps the end of the source, so that
+		// no byte is overwritten before it is copied
+		boolean backwards = to > from && to < from + length;
+		while (length > 0) {
+			long fromStart = backwards ? from + length - 1 : from;
+			long toStart = backwards ? to + length - 1 : to;
+			ByteBuffer src = chunks[(int) (fromStart >>> CHUNK_SHIFT)];
+			ByteBuffer dst = chunks[(int) (toStart >>> CHUNK_SHIFT)];
+			int srcIndex = (int) (fromStart & (CHUNK_BYTES - 1));
+			int dstIndex = (int) (toStart & (CHUNK_BYTES - 1));
+			int piece;
+			if (backwards) {
+				piece = Math.min(length, Math.min(srcIndex, dstIndex) + 1);
+				srcIndex -= piece - 1;
+				dstIndex -= piece - 1;
+			} else {
+				piece = Math.min(length, Math.min(src.capacity() - srcIndex, dst.capacity() - dstIndex));
+				from += piece;
+				to += piece;
+			}
+			// Within one buffer, an overlapping bulk put copies as if through a temporary
+			dst.put(dstIndex, src, srcIndex, piece);
+			length -= piece;
+		}
+	}
+
+	/**
+	 * Returns a view of the bytes of the block at the given address, in native byte order.
+	 * The view must not be used after the block is freed. In a mapped region, the block
+	 * counts as written to until it is freed, since writes through the view cannot be seen.
+	 *
+	 * @param address
+	 *            the base address of the block
+	 * @return A buffer whose position 0 is the first byte of the block, and whose
+	 *         capacity is the length of the block.
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address, or if the block crosses from one
+	 *         chunk of the region to the next
+	 */
+	public ByteBuffer slice(int address) {
+		return slice(address, 0, (int) byteLength(address));
+	}
+
+	/**
+	 * Returns a view of the given number of bytes from the given offset in the block at
+	 * the given address, in native byte order. In a read-only view, whose blocks are not
+	 * known, the bytes may be any bytes of the region, from the given word address on.
+	 *
+	 * @param address
+	 *            the base address of the block
+	 * @param offset
+	 *            the offset in the block of the first byte of the view
+	 * @param length
+	 *            the number of bytes of the view
+	 * @return A buffer whose position 0 is the byte at the offset, and whose capacity is
+	 *         the given length.
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address (unless the view is read-only), or
+	 *         if the bytes cross from one chunk of the region to the next
+	 * @throws IndexOutOfBoundsException
+	 *         if the bytes are not inside the block, or not inside the region
+	 */
+	public ByteBuffer slice(int address, int offset, int length) {
+		long position = position(address, offset, length);
+		if (length > 0 && (position >>> CHUNK_SHIFT) != ((position + length - 1) >>> CHUNK_SHIFT)) {
+			throw new IllegalArgumentException("block crosses a chunk boundary");
+		}
+		ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+		if (sliced != null) {
+			sliced.set(address);
+		}
+		return chunk.slice((int) (position & (CHUNK_BYTES - 1)), length).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Writes the bytes of the block at the given address to the storage device that holds
+	 * the mapped file. Does nothing if the region is not mapped, or is read-only.
+	 *
+	 * @param address
+	 *            the base address of the block
+	 * @throws IllegalArgumentException
+	 *         if no block is allocated at the address, in a region that is not read-only
+	 */
+	public void force(int address) {
+		if (readOnly) {
+			return;
+		}
+		long length = byteLength(address);
+		if (dirty == null) {
+			return;
+		}
+		long position = (long) address * WORD_SIZE;
+		while (length > 0) {
+			MappedByteBuffer chunk = (MappedByteBuffer) chunks[(int) (position >>> CHUNK_SHIFT)];
+			int index = (int) (position & (CHUNK_BYTES - 1));
+			int piece = (int) Math.min(length, chunk.capacity() - index);
+			chunk.force(index, piece);
+			position += piece;
+			length -= piece;
+		}
+		dirty.clear(address);
+	}
+
+	/**
+	 * Writes the bytes of every block that was written to since it was last forced to the
+	 * storage device that holds the mapped file, and of every block that was sliced.
+	 * Does nothing if the region is not mapped, or is read-only.
+	 *
+	 * @return the number of blocks that were forced
+	 */
+	public int forceDirty() {
+		if (dirty == null) {
+			return 0;
+		}
+		dirty.or(sliced);
+		int forced = 0;
+		for (int address = dirty.nextSetBit(0); address >= 0; address = dirty.nextSetBit(address + 1)) {
+			force(address);
+			forced++;
+		}
+		dirty.clear();
+		return forced;
+	}
+
+	// Checks that the given size is not negative, and returns it.
+	private static int checkSize(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("max size must not be negative");
+		}
+		return maxSize;
+	}
+
+	// Returns the number of chunks of a region of the given number of bytes.
+	private static int chunkCount(long bytes) {
+		return (int) ((bytes + CHUNK_BYTES - 1) >>> CHUNK_SHIFT);
+	}
+
+	// Returns the length (in words) of the allocated block at the given address.
+	private int blockLength(int address) {
+		int slot = lengths.find(address);
+		if (slot < 0) {
+			throw new IllegalArgumentException("no block is allocated at address " + address);
+		}
+		return lengths.getValue(slot);
+	}
+
+	// Returns the position in the region of the byte at the given offset in the block at
+	// the given address, after checking that the given number of bytes from there are
+	// inside the block (or, in a read-only view, inside the region).
+	private long position(int address, int offset, int size) {
+		long position = (long) address * WORD_SIZE;
+		if (readOnly) {
+			Objects.checkFromIndexSize(position + offset, size, (long) maxSize * WORD_SIZE);
+		} else {
+			Objects.checkFromIndexSize(offset, size, byteLength(address));
+		}
+		return position + offset;
+	}
+
+	// Remembers that the block at the given address was written to, if the region is
+	// mapped for writing.
+	private void markDirty(int address) {
+		if (dirty != null) {
+			dirty.set(address);
+		}
+	}
+
+	// Reads the given number of bytes from the given position, a byte at a time, and
+	// returns them as a number in native byte order.
+	private long getSlow(long position, int size) {
+		long value = 0;
+		for (int i = 0; i < size; i++) {
+			long b = chunks[(int) ((position + i) >>> CHUNK_SHIFT)].get((int) ((position + i) & (CHUNK_BYTES - 1))) & 0xFF;
+			int shift = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? 8 * i : 8 * (size - 1 - i);
+			value |= b << shift;
+		}
+		return value;
+	}
+
+	// Writes the given number of low bytes of a number to the given position, in native
+	// byte order, a byte at a time.
+	private void putSlow(long position, int size, long value) {
+		for (int i = 0; i < size; i++) {
+			int shift = (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) ? 8 * i : 8 * (size - 1 - i);
+			chunks[(int) ((position + i) >>> CHUNK_SHIFT)].put((int) ((position + i) & (CHUNK_BYTES - 1)),
+					(byte) (value >>> shift));
+		}
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ * Represents a doubly linked list of memory blocks, stored as a structure of arrays.
+ * Instead of a Node and a MemoryBlock object per element, each element is a slot:
+ * an index into parallel int arrays holding the base address, the length, and the
+ * next and previous slots. The slots of removed elements are kept on a stack and
+ * reused by later additions, so once the arrays are large enough, adding and removing
+ * elements allocates no Java objects at all.
+ * <p>
+ * Elements are referred to by their slots, and NIL stands for "no element".
+ */
+public class PooledBlockList {
+
+	/** The slot value that stands for no element. */
+	public static final int NIL = -1;
+
+	// The initial number of slots
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] baseAddresses; // the base address of the block in each slot
+	private int[] lengths;       // the length of the block in each slot
+	private int[] nexts;         // the slot of the next element, or NIL
+	private int[] prevs;         // the slot of the previous element, or NIL
+
+	private int[] freeSlots;     // a stack of the slots that are not in use
+	private int freeCount;       // the number of slots on the stack
+	private int capacity;        // the number of slots that were ever handed out
+
+	private int first;           // the slot of the first element, or NIL
+	private int last;            // the slot of the last element, or NIL
+	private int size;            // number of elements in this list
+
+	/**
+	 * Constructs a new list.
+	 */
+	public PooledBlockList() {
+		baseAddresses = new int[INITIAL_CAPACITY];
+		lengths = new int[INITIAL_CAPACITY];
+		nexts = new int[INITIAL_CAPACITY];
+		prevs = new int[INITIAL_CAPACITY];
+		freeSlots = new int[INITIAL_CAPACITY];
+		freeCount = 0;
+		capacity = 0;
+		first = NIL;
+		last = NIL;
+		size = 0;
+	}
+
+	/**
+	 * Gets the slot of the first element of the list
+	 * @return The first slot, or NIL if the list is empty.
+	 */
+	public int getFirst() {
+		return first;
+	}
+
+	/**
+	 * Gets the slot of the last element of the list
+	 * @return The last slot, or NIL if the list is empty.
+	 */
+	public int getLast() {
+		return last;
+	}
+
+	/**
+	 * Gets the current size of the list
+	 * @return The size of the list.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the slot of the element that follows the element in the given slot.
+	 * @return The next slot, or NIL if the given slot holds the last element.
+	 */
+	public int getNext(int slot) {
+		return nexts[slot];
+	}
+
+	/**
+	 * Gets the slot of the element that precedes the element in the given slot.
+	 * @return The previous slot, or NIL if the given slot holds the first element.
+	 */
+	public int getPrevious(int slot) {
+		return prevs[slot];
+	}
+
+	/**
+	 * Gets the base address of the block in the given slot.
+	 * @return The base address.
+	 */
+	public int getBaseAddress(int slot) {
+		return baseAddresses[slot];
+	}
+
+	/**
+	 * Gets the length of the block in the given slot.
+	 * @return The length, in words.
+	 */
+	public int getLength(int slot) {
+		return lengths[slot];
+	}
+
+	/**
+	 * Changes the block in the given slot.
+	 * 
+	 * @param slot
+	 *        the slot of an element of this list
+	 * @param baseAddress
+	 *        the new base address of the block
+	 * @param length
+	 *        the new length of the block
+	 */
+	public void set(int slot, int baseAddress, int length) {
+		baseAddresses[slot] = baseAddress;
+		lengths[slot] = length;
+	}
+
+	/**
+	 * Adds a block with the given base address and length to the end of this list.
+	 * 
+	 * @param baseAddress
+	 *        the base address of the block
+	 * @param length
+	 *        the length of the block
+	 * @return the slot of the new element
+	 */
+	public int addLast(int baseAddress, int length) {
+		int slot = allocateSlot(baseAddress, length);
+		prevs[slot] = last;
+		nexts[slot] = NIL;
+		if (last == NIL) {
+			first = slot;
+		} else {
+			nexts[last] = slot;
+		}
+		last = slot;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Inserts a block with the given base address and length right before the element
+	 * in the given slot, in O(1) time.
+	 * 
+	 * @param next
+	 *        the slot of an element of this list
+	 * @param baseAddress
+	 *        the base address of the block
+	 * @param length
+	 *        the length of the block
+	 * @return the slot of the new element
+	 */
+	public int addBefore(int next, int baseAddress, int length) {
+		int slot = allocateSlot(baseAddress, length);
+		int prev = prevs[next];
+		prevs[slot] = prev;
+		nexts[slot] = next;
+		if (prev == NIL) {
+			first = slot;
+		} else {
+			nexts[prev] = slot;
+		}
+		prevs[next] = slot;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Removes the element in the given slot from this list, in O(1) time.
+	 * The slot may be reused by a later addition.
+	 * 
+	 * @param slot
+	 *        the slot of an element of this list
+	 */
+	public void remove(int slot) {
+		int prev = prevs[slot];
+		int next = nexts[slot];
+		if (prev == NIL) {
+			first = next;
+		} else {
+			nexts[prev] = next;
+		}
+		if (next == NIL) {
+			last = prev;
+		} else {
+			prevs[next] = prev;
+		}
+		freeSlots[freeCount++] = slot;
+		size--;
+	}
+
+	/**
+	 * Removes all the elements of this list. All the slots may be reused.
+	 */
+	public void clear() {
+		first = NIL;
+		last = NIL;
+		size = 0;
+		freeCount = 0;
+		capacity = 0;
+	}
+
+	/**
+	 * A textual representation of this list, for debugging.
+	 * It has the same format as the textual representation of a LinkedList.
+	 */
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		for (int slot = first; slot != NIL; slot = nexts[slot]) {
+			str.append("(").append(baseAddresses[slot]).append(" , ").append(lengths[slot]).append(") ");
+		}
+		return str.toString();
+	}
+
+	// Returns a slot that is not in use, holding the given block. The slot is taken from
+	// the stack of reusable slots if possible; the arrays grow when all slots are in use.
+	private int allocateSlot(int baseAddress, int length) {
+		int slot;
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		} else {
+			if (capacity == baseAddresses.length) {
+				grow();
+			}
+			slot = capacity++;
+		}
+		baseAddresses[slot] = baseAddress;
+		lengths[slot] = length;
+		return slot;
+	}
+
+	// Doubles the number of slots.
+	private void grow() {
+		int newLength = 2 * baseAddresses.length;
+		baseAddresses = java.util.Arrays.copyOf(baseAddresses, newLength);
+		lengths = java.util.Arrays.copyOf(lengths, newLength);
+		nexts = java.util.Arrays.copyOf(nexts, newLength);
+		prevs = java.util.Arrays.copyOf(prevs, newLength);
+		freeSlots = java.util.Arrays.copyOf(freeSlots, newLength);
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * An allocator engine with the same first-fit placement as the default FirstFitEngine,
+ * whose free list and allocated list are PooledBlockLists rather than lists of Node and
+ * MemoryBlock objects. Once the lists have grown to the size of the workload, malloc
+ * and free allocate no Java objects, and so create no garbage.
+ */
+public class PooledFirstFitEngine implements AllocatorEngine {
+
+	// The memory blocks that are presently allocated
+	private AllocationTable allocated;
+
+	// A list of memory blocks that are presently free
+	private PooledBlockList freeList;
+
+	// Scratch arrays for defrag, kept between calls so that they are allocated only once
+	private int[] slots = new int[0];
+	private long[] keys = new long[0];
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public PooledFirstFitEngine(int maxSize) {
+		allocated = new AllocationTable();
+		freeList = new PooledBlockList();
+		freeList.addLast(0, maxSize);
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the first free
+	 * block whose length equals at least the given length, exactly like FirstFitEngine.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		for (int slot = freeList.getFirst(); slot != PooledBlockList.NIL; slot = freeList.getNext(slot)) {
+			int free = freeList.getLength(slot);
+			if (free >= length) {
+				int address = freeList.getBaseAddress(slot);
+				allocated.add(address, length);
+				if (free == length) {
+					freeList.remove(slot);
+				} else {
+					freeList.set(slot, address + length, free - length);
+				}
+				return address;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and adds it
+	 * at the end of the free list.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		int length = allocated.removeLength(address);
+		if (length >= 0) {
+			freeList.addLast(address, length);
+		}
+	}
+
+	/**
+	 * Merges every run of adjacent free blocks into the block of the run that has the
+	 * lowest base address, which keeps its place in the free list, like FirstFitEngine.
+	 */
+	public void defrag() {
+		int n = freeList.getSize();
+		if (slots.length < n) {
+			slots = new int[n];
+			keys = new long[n];
+		}
+		int i = 0;
+		for (int slot = freeList.getFirst(); slot != PooledBlockList.NIL; slot = freeList.getNext(slot)) {
+			slots[i] = slot;
+			// The high half holds the address, the low half the slot's position in the list
+			keys[i] = ((long) freeList.getBaseAddress(slot) << 32) | i;
+			i++;
+		}
+		java.util.Arrays.sort(keys, 0, n);
+		int run = PooledBlockList.NIL;
+		int runEnd = 0;
+		for (i = 0; i < n; i++) {
+			int slot = slots[(int) keys[i]];
+			int address = freeList.getBaseAddress(slot);
+			int length = freeList.getLength(slot);
+			if (run != PooledBlockList.NIL && runEnd == address) {
+				freeList.set(run, freeList.getBaseAddress(run), freeList.getLength(run) + length);
+				freeList.remove(slot);
+			} else {
+				run = slot;
+			}
+			runEnd = freeList.getBaseAddress(run) + freeList.getLength(run);
+		}
+	}
+
+	/**
+	 * A textual representation of the free list and the allocated list of this engine, 
+	 * for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		return freeList.toString() + "\n" + allocated.toString();
+	}
+}
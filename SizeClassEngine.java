@@ -0,0 +1,199 @@
+/**
+ * An allocator engine that keeps the free memory blocks in size-class bins.
+ * Each bin holds the free blocks whose length is at least the bin's lower bound and
+ * smaller than the next bin's lower bound. By default the bounds are the powers of two,
+ * so bin k holds the blocks whose length is between 2^k and 2^(k+1) - 1.
+ * <p>
+ * malloc first looks for a large enough block in the bin of the requested length, and
+ * otherwise takes the first block of the smallest non-empty bin above it, which is
+ * guaranteed to be large enough. Only the bin of the requested length is ever scanned.
+ */
+public class SizeClassEngine implements AllocatorEngine {
+
+	// The memory blocks that are presently allocated
+	private AllocationTable allocated;
+
+	// The lower bound of each size class, in ascending order
+	private int[] bounds;
+
+	// bins[k] is a list of the free blocks that belong to size class k
+	private DoublyLinkedList[] bins;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size,
+	 * using power-of-two size classes.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public SizeClassEngine(int maxSize) {
+		this(maxSize, powersOfTwo(maxSize));
+	}
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size,
+	 * using the given size classes.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 * @param bounds
+	 *            the lower bound of each size class, in strictly ascending order, starting at 1
+	 * @throws IllegalArgumentException
+	 *         if the bounds are empty, do not start at 1, or are not strictly ascending
+	 */
+	public SizeClassEngine(int maxSize, int[] bounds) {
+		if (bounds == null || bounds.length == 0 || bounds[0] != 1) {
+			throw new IllegalArgumentException("size classes must start at 1");
+		}
+		for (int i = 1; i < bounds.length; i++) {
+			if (bounds[i] <= bounds[i - 1]) {
+				throw new IllegalArgumentException("size classes must be strictly ascending");
+			}
+		}
+		this.bounds = bounds.clone();
+		allocated = new AllocationTable();
+		bins = new DoublyLinkedList[bounds.length];
+		for (int i = 0; i < bins.length; i++) {
+			bins[i] = new DoublyLinkedList();
+		}
+		if (maxSize > 0) {
+			insert(new MemoryBlock(0, maxSize));
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the first large
+	 * enough block in the bin of the requested length, or else from the first block of
+	 * the smallest non-empty bin above it. The rest of the found block stays free, and is
+	 * moved to another bin if its length dropped below the bounds of its bin.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0) {
+			return -1;
+		}
+		int k = classOf(length);
+		DoublyLinkedList bin = bins[k];
+		Node found = null;
+		Node current = bin.getFirst();
+		while (current != null) {
+			if (current.block.length >= length) {
+				found = current;
+				break;
+			}
+			current = current.next;
+		}
+		if (found == null) {
+			for (k = k + 1; k < bins.length; k++) {
+				if (bins[k].getSize() > 0) {
+					bin = bins[k];
+					found = bin.getFirst();
+					break;
+				}
+			}
+		}
+		if (found == null) {
+			return -1;
+		}
+		MemoryBlock block = found.block;
+		MemoryBlock m = new MemoryBlock(block.baseAddress, length);
+		allocated.add(m);
+		if (block.length == length) {
+			bin.remove(found);
+		} else {
+			block.baseAddress += length;
+			block.length -= length;
+			if (classOf(block.length) != k) {
+				bin.remove(found);
+				insert(block);
+			}
+		}
+		return m.baseAddress;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and adds it
+	 * to the end of the bin of its length.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		MemoryBlock free = allocated.remove(address);
+		if (free != null) {
+			insert(free);
+		}
+	}
+
+	/**
+	 * Merges adjacent free blocks. The free blocks of all the bins are sorted by address,
+	 * adjacent blocks are merged in a single sweep, and the bins are refilled with the
+	 * merged blocks.
+	 */
+	public void defrag() {
+		int count = 0;
+		for (int k = 0; k < bins.length; k++) {
+			count += bins[k].getSize();
+		}
+		MemoryBlock[] blocks = new MemoryBlock[count];
+		int i = 0;
+		for (int k = 0; k < bins.length; k++) {
+			ListIterator itr = bins[k].iterator();
+			while (itr.hasNext()) {
+				blocks[i++] = itr.next();
+			}
+			bins[k] = new DoublyLinkedList();
+		}
+		int merged = Coalescer.coalesce(blocks);
+		for (i = 0; i < merged; i++) {
+			insert(blocks[i]);
+		}
+	}
+
+	/**
+	 * A textual representation of the free blocks, bin after bin, and the allocated
+	 * blocks of this engine, for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (int k = 0; k < bins.length; k++) {
+			str += bins[k].toString();
+		}
+		return str + "\n" + allocated.toString();
+	}
+
+	// Adds the given free block to the end of the bin of its length.
+	private void insert(MemoryBlock block) {
+		bins[classOf(block.length)].addLast(block);
+	}
+
+	// Returns the index of the size class of the given length, which is the last class
+	// whose lower bound is at most the length (class 0 for lengths below 1).
+	private int classOf(int length) {
+		int low = 0;
+		int high = bounds.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (bounds[mid] <= length) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	// Returns the powers of two 1, 2, 4, ... up to the largest one that is at most maxSize.
+	private static int[] powersOfTwo(int maxSize) {
+		int n = maxSize <= 1 ? 1 : 32 - Integer.numberOfLeadingZeros(maxSize);
+		int[] bounds = new int[n];
+		for (int i = 0; i < n; i++) {
+			bounds[i] = 1 << i;
+		}
+		return bounds;
+	}
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Compares the two ways of rebuilding a memory space at startup: replaying the calls
+ * that led to its state, and restoring it from a snapshot. The workload allocates the
+ * given number of blocks of random lengths, and then frees a random block and allocates
+ * a new one, as many times again, so the free list is long and fragmented. The calls are
+ * kept in memory, so the replay reads no file at all. The program prints the time of the
+ * replay, of writing the snapshot and of restoring it, and the size of the snapshot.
+ * <p>
+ * Usage: java SnapshotBenchmark [blocks]
+ */
+public class SnapshotBenchmark {
+
+	// The largest block length requested by the workload
+	private static final int MAX_LENGTH = 16;
+
+	// The number of untimed rounds that run before the measured one
+	private static final int WARMUP_ROUNDS = 2;
+
+	public static void main(String[] args) throws IOException {
+		int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int maxSize = blocks * MAX_LENGTH;
+		int[] calls = record(blocks, maxSize);
+		Path file = Files.createTempFile("memoryspace", ".snapshot");
+		try {
+			long replay = 0;
+			long write = 0;
+			long restore = 0;
+			String replayed = null;
+			String restored = null;
+			for (int i = 0; i <= WARMUP_ROUNDS; i++) {
+				long start = System.nanoTime();
+				MemorySpace memory = replay(calls, maxSize);
+				replay = System.nanoTime() - start;
+				start = System.nanoTime();
+				memory.snapshot(file);
+				write = System.nanoTime() - start;
+				start = System.nanoTime();
+				MemorySpace copy = MemorySpace.restore(file);
+				restore = System.nanoTime() - start;
+				if (i == WARMUP_ROUNDS) {
+					replayed = memory.toString();
+					restored = copy.toString();
+				}
+			}
+			if (!replayed.equals(restored)) {
+				throw new AssertionError("the restored memory space differs from the replayed one");
+			}
+			System.out.println("blocks: " + blocks + ", calls: " + calls.length);
+			System.out.printf("replay   %10.1f ms%n", replay / 1e6);
+			System.out.printf("snapshot %10.1f ms, %d bytes%n", write / 1e6, Files.size(file));
+			System.out.printf("restore  %10.1f ms (%.1fx faster than replay)%n", restore / 1e6,
+					(double) replay / restore);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	// Runs the workload, and returns its calls: a length for each malloc, and -1 - address
+	// for each free.
+	private static int[] record(int blocks, int maxSize) {
+		Random random = new Random(42);
+		MemorySpace memory = new MemorySpace(new FirstFitEngine(maxSize));
+		int[] calls = new int[3 * blocks];
+		int count = 0;
+		int[] live = new int[blocks];
+		for (int i = 0; i < blocks; i++) {
+			int length = 1 + random.nextInt(MAX_LENGTH);
+			live[i] = memory.malloc(length);
+			calls[count++] = length;
+		}
+		for (int i = 0; i < blocks; i++) {
+			int victim = random.nextInt(blocks);
+			memory.free(live[victim]);
+			calls[count++] = -1 - live[victim];
+			int length = 1 + random.nextInt(MAX_LENGTH);
+			int address = memory.malloc(length);
+			if (address >= 0) {
+				live[victim] = address;
+				calls[count++] = length;
+			}
+		}
+		return java.util.Arrays.copyOf(calls, count);
+	}
+
+	// Replays the given calls on a new memory space.
+	private static MemorySpace replay(int[] calls, int maxSize) {
+		MemorySpace memory = new MemorySpace(new FirstFitEngine(maxSize));
+		for (int call : calls) {
+			if (call >= 0) {
+				memory.malloc(call);
+			} else {
+				memory.free(-1 - call);
+			}
+		}
+		return memory;
+	}
+}
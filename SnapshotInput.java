@@ -0,0 +1,193 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the ints written by a SnapshotOutput from a FileChannel, through a buffer, so
+ * that the channel is called once per BUFFER_SIZE bytes rather than once per value.
+ */
+public class SnapshotInput {
+
+	/** The size of the buffer, in bytes. */
+	public static final int BUFFER_SIZE = SnapshotOutput.BUFFER_SIZE;
+
+	// The longest varint of an int, in bytes
+	private static final int MAX_VARINT_BYTES = 5;
+
+	// The channel that the buffer is filled from
+	private final FileChannel channel;
+
+	// The bytes that were read from the channel and not consumed yet
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Constructs an input that reads from the given channel, at its current position.
+	 *
+	 * @param channel
+	 *            the channel, opened for reading
+	 */
+	public SnapshotInput(FileChannel channel) {
+		this.channel = channel;
+		buffer.limit(0);
+	}
+
+	/**
+	 * Reads an int written by SnapshotOutput.writeInt.
+	 *
+	 * @return the value
+	 * @throws EOFException
+	 *         if the channel ends before the value
+	 * @throws IOException
+	 *         if the channel cannot be read
+	 */
+	public int readInt() throws IOException {
+		fill(Integer.BYTES);
+		if (buffer.remaining() < Integer.BYTES) {
+			throw new EOFException("snapshot is truncated");
+		}
+		return buffer.getInt();
+	}
+
+	/**
+	 * Reads an int written by SnapshotOutput.writeVarInt.
+	 *
+	 * @return the value
+	 * @throws EOFException
+	 *         if the channel ends before the value
+	 * @throws IOException
+	 *         if the channel cannot be read, or the varint is longer than five bytes
+	 */
+	public int readVarInt() throws IOException {
+		fill(MAX_VARINT_BYTES);
+		return getVarInt(buffer);
+	}
+
+	/**
+	 * Reads an int written by SnapshotOutput.writeSignedVarInt.
+	 *
+	 * @return the value
+	 * @throws EOFException
+	 *         if the channel ends before the value
+	 * @throws IOException
+	 *         if the channel cannot be read, or the varint is longer than five bytes
+	 */
+	public int readSignedVarInt() throws IOException {
+		return unZigZag(readVarInt());
+	}
+
+	/**
+	 * Reads a long written by SnapshotOutput.writeLong.
+	 *
+	 * @return the value
+	 * @throws EOFException
+	 *         if the channel ends before the value
+	 * @throws IOException
+	 *         if the channel cannot be read
+	 */
+	public long readLong() throws IOException {
+		fill(Long.BYTES);
+		if (buffer.remaining() < Long.BYTES) {
+			throw new EOFException("snapshot is truncated");
+		}
+		return buffer.getLong();
+	}
+
+	/**
+	 * Reads bytes until the given array is full.
+	 *
+	 * @param bytes
+	 *            the array
+	 * @throws EOFException
+	 *         if the channel ends before the array is full
+	 * @throws IOException
+	 *         if the channel cannot be read
+	 */
+	public void readFully(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			fill(1);
+			if (!buffer.hasRemaining()) {
+				throw new EOFException("snapshot is truncated");
+			}
+			int count = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.get(bytes, offset, count);
+			offset += count;
+		}
+	}
+
+	/**
+	 * Gets the position in the channel of the next byte to read.
+	 *
+	 * @return the position
+	 * @throws IOException
+	 *         if the channel cannot be read
+	 */
+	public long position() throws IOException {
+		return channel.position() - buffer.remaining();
+	}
+
+	/**
+	 * Tells whether all the bytes of the channel were consumed.
+	 *
+	 * @return true if there are no more bytes to read
+	 * @throws IOException
+	 *         if the channel cannot be read
+	 */
+	public boolean atEnd() throws IOException {
+		fill(1);
+		return !buffer.hasRemaining();
+	}
+
+	/**
+	 * Gets a varint from the given buffer.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @return the value
+	 * @throws EOFException
+	 *         if the buffer ends before the value
+	 * @throws IOException
+	 *         if the varint is longer than five bytes
+	 */
+	public static int getVarInt(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (!buffer.hasRemaining()) {
+				throw new EOFException("snapshot is truncated");
+			}
+			byte b = buffer.get();
+			if (shift == 28 && (b & 0xF0) != 0) {
+				throw new IOException("malformed varint in snapshot");
+			}
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	/**
+	 * Returns the int whose zig-zag encoding is the given value.
+	 *
+	 * @param value
+	 *            the encoded value
+	 * @return the decoded value
+	 */
+	public static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	// Reads from the channel until the buffer holds at least the given number of bytes,
+	// or the channel ends.
+	private void fill(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+		buffer.compact();
+		while (buffer.position() < bytes && channel.read(buffer) >= 0) {
+			// keep reading
+		}
+		buffer.flip();
+	}
+}
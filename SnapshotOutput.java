@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the ints of a snapshot to a FileChannel, through a buffer, so that the channel
+ * is called once per BUFFER_SIZE bytes rather than once per value. Ints are written
+ * either with a fixed width of four bytes, or as varints: seven bits per byte, low bits
+ * first, with the high bit of each byte set if more bytes follow, so small values take
+ * a single byte. Signed values are zig-zag encoded first, so that small negative values
+ * are small as well. Longs are written with a fixed width of eight bytes.
+ */
+public class SnapshotOutput {
+
+	/** The size of the buffer, in bytes. */
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	// The longest varint of an int, in bytes
+	private static final int MAX_VARINT_BYTES = 5;
+
+	// The channel that the buffer is drained to
+	private final FileChannel channel;
+
+	// The bytes that were written and not drained yet
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Constructs an output that writes to the given channel, at its current position.
+	 *
+	 * @param channel
+	 *            the channel, opened for writing
+	 */
+	public SnapshotOutput(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Writes an int as four bytes, high byte first.
+	 *
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *         if the channel cannot be written
+	 */
+	public void writeInt(int value) throws IOException {
+		reserve(Integer.BYTES);
+		buffer.putInt(value);
+	}
+
+	/**
+	 * Writes an int as a varint. A negative value is taken as unsigned, and takes five bytes.
+	 *
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *         if the channel cannot be written
+	 */
+	public void writeVarInt(int value) throws IOException {
+		reserve(MAX_VARINT_BYTES);
+		putVarInt(buffer, value);
+	}
+
+	/**
+	 * Writes an int as the varint of its zig-zag encoding, which maps 0, -1, 1, -2, ...
+	 * to 0, 1, 2, 3, ...
+	 *
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *         if the channel cannot be written
+	 */
+	public void writeSignedVarInt(int value) throws IOException {
+		writeVarInt(zigZag(value));
+	}
+
+	/**
+	 * Writes a long as eight bytes, high byte first.
+	 *
+	 * @param value
+	 *            the value
+	 * @throws IOException
+	 *         if the channel cannot be written
+	 */
+	public void writeLong(long value) throws IOException {
+		reserve(Long.BYTES);
+		buffer.putLong(value);
+	}
+
+	/**
+	 * Writes the buffered bytes to the channel.
+	 *
+	 * @throws IOException
+	 *         if the channel cannot be written
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Puts an int as a varint in the given buffer, which must have room for five bytes.
+	 *
+	 * @param buffer
+	 *            the buffer
+	 * @param value
+	 *            the value
+	 */
+	public static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Returns the zig-zag encoding of an int, which maps 0, -1, 1, -2, ... to 0, 1, 2, 3, ...
+	 *
+	 * @param value
+	 *            the value
+	 * @return the encoded value
+	 */
+	public static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	// Makes room for the given number of bytes in the buffer.
+	private void reserve(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+}
@@ -12,6 +12,31 @@ public class TestMemorySpace {
         testFree();
         testDefrag();
         testComplexScenario();
+        testSizeClassEngine();
+        testBestFitEngine();
+        testBuddyEngine();
+        testTlsfEngine();
+        testAddressOrderedFree();
+        testManyFrees();
+        testLongFreeList();
+        testDoublyLinkedList();
+        testPooledEngine();
+        testListFinger();
+        testFirstFitTreeEngine();
+        testNextFit();
+        testEngineSelection();
+        testBitmapEngine();
+        testConcurrentMemorySpace();
+        testCachingMemorySpace();
+        testLockFreeEngine();
+        testLockFreeLinearizability();
+        testRemoteFrees();
+        testArenaRebalancer();
+        testOffHeapMemorySpace();
+        testMappedMemorySpace();
+        testSnapshot();
+        testJournaledMemorySpace();
+        testCompactionPolicy();
 
         System.out.println("All tests completed successfully!");
     }
@@ -98,6 +123,1257 @@ public class TestMemorySpace {
         assertString(expected, memory.toString(), "Complex scenario state");
     }
 
+    private static void testSizeClassEngine() {
+        MemorySpace memory = new MemorySpace(new SizeClassEngine(100));
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(30);
+        int addr3 = memory.malloc(40);
+        assertEqual(0, addr1, "Size class first allocation");
+        assertEqual(20, addr2, "Size class second allocation");
+        assertEqual(50, addr3, "Size class third allocation");
+
+        memory.free(addr1);
+        memory.free(addr3);
+        // The 10 words at 90 are in a smaller bin than the 40 words at 50
+        assertEqual(90, memory.malloc(9), "Size class allocation from the smallest fitting bin");
+        assertEqual(50, memory.malloc(35), "Size class allocation from a larger bin");
+
+        memory.free(50);
+        memory.free(90);
+        memory.defrag();
+        String expected = "(0 , 20)(50 , 50)\n(20 , 30)\n";
+        assertString(expected, memory.toString(), "Size class state after defrag");
+        assertEqual(50, memory.malloc(50), "Size class allocation after defrag");
+    }
+
+    private static void testBestFitEngine() {
+        MemorySpace memory = new MemorySpace(new BestFitEngine(100));
+        int addr1 = memory.malloc(30);
+        memory.malloc(10);
+        int addr3 = memory.malloc(10);
+        memory.malloc(10);
+        memory.free(addr1);
+        memory.free(addr3);
+
+        // Free blocks: (0 , 30) (40 , 10) (60 , 40); the hole at 40 is the best fit
+        assertEqual(40, memory.malloc(10), "Best fit exact hole");
+        assertEqual(0, memory.malloc(25), "Best fit smallest sufficient block");
+        assertEqual(-1, memory.malloc(41), "Best fit failure");
+
+        String expected = "(25 , 5)(60 , 40)\n(30 , 10)(50 , 10)(40 , 10)(0 , 25)\n";
+        assertString(expected, memory.toString(), "Best fit state");
+
+        memory.free(0);
+        memory.defrag();
+        expected = "(0 , 30)(60 , 40)\n(30 , 10)(50 , 10)(40 , 10)\n";
+        assertString(expected, memory.toString(), "Best fit state after defrag");
+    }
+
+    private static void testBuddyEngine() {
+        BuddyEngine buddy = new BuddyEngine(100);
+        MemorySpace memory = new MemorySpace(buddy);
+        assertString("(96 , 4)(64 , 32)(0 , 64)\n", memory.toString(), "Buddy initialization");
+
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(3);
+        int addr3 = memory.malloc(32);
+        assertEqual(64, addr1, "Buddy allocation rounded to 32");
+        assertEqual(96, addr2, "Buddy allocation rounded to 4");
+        assertEqual(0, addr3, "Buddy allocation split from 64");
+        assertEqual(13, (int) buddy.getInternalFragmentation(), "Buddy internal fragmentation");
+        assertEqual(-1, memory.malloc(40), "Buddy allocation failure");
+
+        memory.free(addr3);
+        assertString("(0 , 64)\n(64 , 20)(96 , 3)\n", memory.toString(), "Buddy merge on free");
+        assertEqual(36, (int) buddy.getReservedWords(), "Buddy reserved words");
+    }
+
+    private static void testTlsfEngine() {
+        MemorySpace memory = new MemorySpace(new TlsfEngine(100));
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(20);
+        int addr3 = memory.malloc(20);
+        assertEqual(40, addr3, "TLSF third allocation");
+
+        memory.free(addr1);
+        memory.free(addr3);
+        String expected = "(0 , 20)(40 , 60)\n(20 , 20)\n";
+        assertString(expected, memory.toString(), "TLSF merge with successor");
+
+        memory.free(addr2);
+        assertString("(0 , 100)\n", memory.toString(), "TLSF merge with both neighbours");
+        assertEqual(0, memory.malloc(100), "TLSF allocation of the whole space");
+        assertEqual(-1, memory.malloc(1), "TLSF allocation failure");
+
+        // Merged blocks are reused by later splits
+        memory = new MemorySpace(new TlsfEngine(100));
+        int kept = memory.malloc(10);
+        for (int i = 0; i < 1000; i++) {
+            int first = memory.malloc(1 + i % 30);
+            int second = memory.malloc(5);
+            memory.free(first);
+            memory.free(second);
+        }
+        memory.free(500);
+        memory.free(-1);
+        assertString("(10 , 90)\n(0 , 10)\n", memory.toString(), "TLSF state after many mallocs and frees");
+        memory.free(kept);
+        assertEqual(0, memory.malloc(100), "TLSF allocation of the whole space after reuse");
+    }
+
+    private static void testAddressOrderedFree() {
+        MemorySpace memory = new MemorySpace(new FirstFitEngine(100, true));
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(20);
+        int addr3 = memory.malloc(20);
+        memory.malloc(20);
+
+        memory.free(addr3);
+        memory.free(addr1);
+        assertString("(0 , 20)(40 , 20)(80 , 20)\n(20 , 20)(60 , 20)\n", memory.toString(),
+                "Address-ordered free without neighbours");
+
+        memory.free(addr2);
+        assertString("(0 , 60)(80 , 20)\n(60 , 20)\n", memory.toString(),
+                "Address-ordered free merges both neighbours");
+
+        memory.free(60);
+        assertString("(0 , 100)\n", memory.toString(), "Address-ordered free merges to one block");
+        assertEqual(0, memory.malloc(100), "Address-ordered allocation without defrag");
+    }
+
+    private static void testManyFrees() {
+        MemorySpace memory = new MemorySpace(10000);
+        for (int i = 0; i < 1000; i++) {
+            memory.malloc(10);
+        }
+        // Frees the blocks in a scattered order, and tries every freed address and an
+        // address inside a block a second time while some blocks are still allocated
+        for (int i = 0; i < 1000; i++) {
+            int address = (i * 337 % 1000) * 10;
+            memory.free(address);
+            if (i < 999) {
+                memory.free(address);
+                memory.free(address + 5);
+            }
+        }
+        memory.defrag();
+        assertString("(0 , 10000)\n", memory.toString(), "Many frees followed by defrag");
+    }
+
+    private static void testLongFreeList() {
+        // Runs on a thread with a small stack, where a recursion over the free list overflows
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                int blocks = 20000;
+                MemorySpace memory = new MemorySpace(2 * blocks);
+                for (int i = 0; i < blocks; i++) {
+                    memory.malloc(2);
+                }
+                // Frees every other block first, so the free list is long and not coalesced
+                for (int i = blocks - 1; i >= 0; i -= 2) {
+                    memory.free(2 * i);
+                }
+                for (int i = blocks - 2; i >= 0; i -= 2) {
+                    memory.free(2 * i);
+                }
+                String text = memory.toString();
+                assertEqual(blocks, text.length() - text.replace("(", "").length(), "Long free list toString");
+                memory.defrag();
+                assertString("(0 , " + 2 * blocks + ")\n", memory.toString(), "Long free list defrag");
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "long-free-list", 128 * 1024);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        if (failure[0] != null) {
+            throw new AssertionError("Long free list", failure[0]);
+        }
+    }
+
+    private static void testDoublyLinkedList() {
+        DoublyLinkedList list = new DoublyLinkedList();
+        Node middle = list.addLast(new MemoryBlock(10, 10));
+        list.addBefore(middle, new MemoryBlock(0, 10));
+        Node end = list.addAfter(middle, new MemoryBlock(20, 10));
+        list.addAfter(end, new MemoryBlock(30, 10));
+        assertString("(0 , 10)(10 , 10)(20 , 10)(30 , 10)", list.toString(), "Doubly linked inserts");
+        assertEqual(20, list.getBlock(2).baseAddress, "Doubly linked getBlock");
+
+        list.remove(middle);
+        list.remove(list.getLast());
+        assertEqual(2, list.getSize(), "Doubly linked size after removes");
+        assertEqual(0, list.getFirst().block.baseAddress, "Doubly linked first after removes");
+        assertEqual(20, list.getLast().block.baseAddress, "Doubly linked last after removes");
+        assertEqual(list.getFirst().next == end && end.prev == list.getFirst() ? 1 : 0, 1,
+                "Doubly linked links after removes");
+    }
+
+    private static void testPooledEngine() {
+        MemorySpace memory = new MemorySpace(new PooledFirstFitEngine(100));
+        memory.malloc(20);
+        memory.malloc(20);
+        int addr3 = memory.malloc(20);
+        memory.free(0);
+        memory.free(addr3);
+        assertString("(0 , 20) (40 , 20) (60 , 40)\n(20 , 20)\n", memory.toString(), "Pooled before defrag");
+
+        memory.defrag();
+        assertString("(0 , 20) (40 , 60)\n(20 , 20)\n", memory.toString(), "Pooled after defrag");
+
+        // Freed slots are reused by later blocks
+        int addr4 = memory.malloc(60);
+        memory.free(addr4);
+        assertEqual(40, addr4, "Pooled allocation after defrag");
+        assertString("(0 , 20) (40 , 60)\n(20 , 20)\n", memory.toString(), "Pooled after reuse");
+    }
+
+    private static void testListFinger() {
+        LinkedList list = new LinkedList();
+        DoublyLinkedList doubly = new DoublyLinkedList();
+        for (int i = 0; i < 10; i++) {
+            list.addLast(new MemoryBlock(i * 10, 10));
+            doubly.addLast(new MemoryBlock(i * 10, 10));
+        }
+        assertEqual(50, list.getBlock(5).baseAddress, "Finger first access");
+        assertEqual(70, list.getBlock(7).baseAddress, "Finger forward access");
+        assertEqual(20, list.getBlock(2).baseAddress, "Finger backward access");
+        list.remove(1);
+        assertEqual(30, list.getBlock(2).baseAddress, "Finger after remove");
+        list.add(2, new MemoryBlock(15, 5));
+        assertEqual(15, list.getBlock(2).baseAddress, "Finger after add");
+        list.addLast(new MemoryBlock(100, 10));
+        assertEqual(100, list.getBlock(10).baseAddress, "Finger after addLast");
+
+        assertEqual(60, doubly.getBlock(6).baseAddress, "Doubly finger first access");
+        assertEqual(40, doubly.getBlock(4).baseAddress, "Doubly finger backward access");
+        doubly.remove(doubly.getNode(4));
+        assertEqual(50, doubly.getBlock(4).baseAddress, "Doubly finger after remove");
+        doubly.addBefore(doubly.getNode(4), new MemoryBlock(40, 10));
+        assertEqual(40, doubly.getBlock(4).baseAddress, "Doubly finger after addBefore");
+    }
+
+    private static void testFirstFitTreeEngine() {
+        MemorySpace memory = new MemorySpace(new FirstFitTreeEngine(1000));
+        int[] addresses = new int[100];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = memory.malloc(10);
+        }
+        // Leaves holes of 10 words at 100, 300, 500, ... and a hole of 30 words at 600
+        for (int i = 10; i < addresses.length; i += 20) {
+            memory.free(addresses[i]);
+        }
+        memory.free(600);
+        memory.free(610);
+        memory.free(620);
+        assertEqual(100, memory.malloc(5), "Tree first fit takes the lowest hole");
+        assertEqual(600, memory.malloc(25), "Tree first fit skips holes that are too small");
+        assertEqual(-1, memory.malloc(31), "Tree first fit failure");
+
+        memory.free(600);
+        memory.free(100);
+        assertEqual(600, memory.malloc(30), "Tree free merges with its neighbour");
+    }
+
+    private static void testNextFit() {
+        FirstFitEngine firstFit = new FirstFitEngine(100);
+        FirstFitEngine nextFit = new FirstFitEngine(100, false, true);
+        MemorySpace first = new MemorySpace(firstFit);
+        MemorySpace next = new MemorySpace(nextFit);
+        for (int i = 0; i < 10; i++) {
+            first.malloc(10);
+            next.malloc(10);
+        }
+        // Free list: (0 , 10) (20 , 10) (40 , 10) (60 , 10) (80 , 10)
+        for (int address = 0; address < 100; address += 20) {
+            first.free(address);
+            next.free(address);
+        }
+        long firstInspected = firstFit.getInspectedCount();
+        long nextInspected = nextFit.getInspectedCount();
+        for (int i = 0; i < 4; i++) {
+            assertEqual(i * 20, first.malloc(8), "First fit allocation " + i);
+            assertEqual(i * 20, next.malloc(8), "Next fit allocation " + i);
+        }
+        // First fit rescans the exhausted (x , 2) blocks; next fit starts after them
+        assertEqual(1 + 2 + 3 + 4, (int) (firstFit.getInspectedCount() - firstInspected),
+                "First fit inspected blocks");
+        assertEqual(1 + 2 + 2 + 2, (int) (nextFit.getInspectedCount() - nextInspected),
+                "Next fit inspected blocks");
+
+        assertEqual(80, next.malloc(9), "Next fit continues from the rover");
+        assertEqual(8, next.malloc(2), "Next fit wraps around to the beginning");
+        assertEqual(-1, next.malloc(3), "Next fit fails after a full round");
+        assertEqual(17, (int) nextFit.getMallocCount(), "Next fit malloc count");
+    }
+
+    private static void testEngineSelection() {
+        for (String name : AllocatorEngines.NAMES) {
+            MemorySpace memory = new MemorySpace(128, name);
+            assertEqual(0, memory.malloc(64), "Engine " + name + " allocation");
+            memory.free(0);
+            memory.defrag();
+            assertEqual(0, memory.malloc(128), "Engine " + name + " allocation after free");
+        }
+
+        System.setProperty(AllocatorEngines.ENGINE_PROPERTY, "best-fit");
+        try {
+            assertEqual(1, new MemorySpace(100).getEngine() instanceof BestFitEngine ? 1 : 0,
+                    "Engine selected by system property");
+        } finally {
+            System.clearProperty(AllocatorEngines.ENGINE_PROPERTY);
+        }
+        assertEqual(1, new MemorySpace(100).getEngine() instanceof FirstFitEngine ? 1 : 0,
+                "Default engine");
+        assertEqual(1, new MemorySpace(100, "TlsfEngine").getEngine() instanceof TlsfEngine ? 1 : 0,
+                "Engine selected by class name");
+        try {
+            new MemorySpace(100, "MemoryBlock");
+            throw new AssertionError("Engine selected by a class that is not an engine");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            AllocatorEngines.create("LockFreeEngine", -1);
+            throw new AssertionError("Engine class whose constructor fails");
+        } catch (NegativeArraySizeException e) {
+            // expected: the exception of the constructor, not "unknown engine"
+        }
+        try {
+            AllocatorEngines.create(null, 100);
+            throw new AssertionError("Engine selected by a null name");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testBitmapEngine() {
+        MemorySpace memory = new MemorySpace(new BitmapEngine(200));
+        assertEqual(0, memory.malloc(60), "Bitmap allocation inside one word");
+        assertEqual(60, memory.malloc(70), "Bitmap allocation across words");
+        assertEqual(130, memory.malloc(10), "Bitmap third allocation");
+        memory.free(60);
+        assertString("(60 , 70)(140 , 60)\n(0 , 60)(130 , 10)\n", memory.toString(), "Bitmap after free");
+        assertEqual(60, memory.malloc(5), "Bitmap first fit");
+        assertEqual(65, memory.malloc(60), "Bitmap first fit of a whole hole");
+        assertEqual(-1, memory.malloc(61), "Bitmap failure");
+        memory.free(130);
+        assertEqual(125, memory.malloc(75), "Bitmap free runs merge without defrag");
+
+        MemorySpace units = new MemorySpace(new BitmapEngine(100, 8));
+        assertEqual(0, units.malloc(3), "Bitmap unit allocation");
+        assertEqual(8, units.malloc(9), "Bitmap unit allocation rounded up");
+        assertEqual(-1, units.malloc(81), "Bitmap unit failure past the last whole unit");
+        assertString("(24 , 72)\n(0 , 3)(8 , 9)\n", units.toString(), "Bitmap unit state");
+
+        MemorySpace scalar = new MemorySpace(new BitmapEngine(2000, 1, BitmapEngine.SCALAR_SCAN));
+        MemorySpace lanes = new MemorySpace(new BitmapEngine(2000, 1, BitmapEngine.LANE_SCAN));
+        for (int i = 0; i < 20; i++) {
+            assertEqual(scalar.malloc(90), lanes.malloc(90), "Bitmap lane fill " + i);
+        }
+        for (int i = 0; i < 20; i += 3) {
+            scalar.free(i * 90);
+            lanes.free(i * 90);
+        }
+        assertEqual(scalar.malloc(300), lanes.malloc(300), "Bitmap lane run across groups");
+        assertEqual(scalar.malloc(50), lanes.malloc(50), "Bitmap lane run inside a word");
+        assertEqual(-1, lanes.malloc(500), "Bitmap lane failure");
+        assertString(scalar.toString(), lanes.toString(), "Bitmap lane state");
+
+        // The adaptive mode takes the lane scan for a long request in a full bitmap
+        MemorySpace adaptive = new MemorySpace(new BitmapEngine(4096));
+        scalar = new MemorySpace(new BitmapEngine(4096, 1, BitmapEngine.SCALAR_SCAN));
+        for (int i = 0; i < 64; i++) {
+            assertEqual(scalar.malloc(64), adaptive.malloc(64), "Bitmap adaptive fill " + i);
+        }
+        for (int i = 40; i < 44; i++) {
+            scalar.free(i * 64);
+            adaptive.free(i * 64);
+        }
+        scalar.free(0);
+        adaptive.free(0);
+        assertEqual(40 * 64, adaptive.malloc(200), "Bitmap adaptive long run in a full bitmap");
+        assertEqual(scalar.malloc(200), 40 * 64, "Bitmap scalar long run in a full bitmap");
+        assertEqual(scalar.malloc(10), adaptive.malloc(10), "Bitmap adaptive short run");
+        assertString(scalar.toString(), adaptive.toString(), "Bitmap adaptive state");
+        try {
+            new BitmapEngine(100, 1, 3);
+            throw new AssertionError("Bitmap engine accepts an unknown scan mode");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testConcurrentMemorySpace() {
+        ConcurrentMemorySpace memory = new ConcurrentMemorySpace(400, 4);
+        assertEqual(0, memory.malloc(100), "Arena home allocation");
+        assertEqual(100, memory.malloc(50), "Arena fallback when home is full");
+        assertEqual(-1, memory.malloc(101), "Arena request longer than an arena");
+        memory.free(0);
+        assertEqual(0, memory.malloc(20), "Arena allocation after free");
+        memory.free(-5);
+        memory.free(400);
+        assertEqual(-1, memory.malloc(-1), "Arena negative length");
+
+        // A zero-length block must not share its address with the next block
+        ConcurrentMemorySpace zero = new ConcurrentMemorySpace(100, 1);
+        int empty = zero.malloc(0);
+        int next = zero.malloc(10);
+        assertEqual(1, empty != next ? 1 : 0, "Arena zero-length block has its own address");
+        zero.free(empty);
+        zero.free(next);
+        assertEqual(0, (int) (zero.getArenaPressure(0) * 100), "Arena is empty after both frees");
+        zero.defrag();
+        assertString("arena 0 at 0:\n(0 , 100)\n\n", zero.toString(), "Arena zero-length blocks are freed");
+
+        ConcurrentMemorySpace shared = new ConcurrentMemorySpace(4000, 4);
+        java.util.concurrent.atomic.AtomicIntegerArray owners = new java.util.concurrent.atomic.AtomicIntegerArray(4000);
+        java.util.concurrent.atomic.AtomicInteger overlaps = new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t + 1;
+            threads[t] = new Thread(() -> {
+                int[] live = new int[20];
+                java.util.Arrays.fill(live, -1);
+                for (int i = 0; i < 5000; i++) {
+                    int slot = i % live.length;
+                    if (live[slot] >= 0) {
+                        for (int a = live[slot]; a < live[slot] + 10; a++) {
+                            owners.set(a, 0);
+                        }
+                        shared.free(live[slot]);
+                    }
+                    live[slot] = shared.malloc(10);
+                    for (int a = live[slot]; live[slot] >= 0 && a < live[slot] + 10; a++) {
+                        if (!owners.compareAndSet(a, 0, id)) {
+                            overlaps.incrementAndGet();
+                        }
+                    }
+                }
+                for (int address : live) {
+                    if (address >= 0) {
+                        for (int a = address; a < address + 10; a++) {
+                            owners.set(a, 0);
+                        }
+                        shared.free(address);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        assertEqual(0, overlaps.get(), "Arenas never hand out a word twice");
+        shared.defrag();
+        assertString("arena 0 at 0:\n(0 , 1000)\n\narena 1 at 1000:\n(0 , 1000)\n\n"
+                + "arena 2 at 2000:\n(0 , 1000)\n\narena 3 at 3000:\n(0 , 1000)\n\n",
+                shared.toString(), "Arenas after all blocks are freed");
+    }
+
+    private static void testCachingMemorySpace() {
+        CachingMemorySpace memory = new CachingMemorySpace(new ConcurrentMemorySpace(1000, 1), 4);
+        assertEqual(0, memory.malloc(3), "Cache miss allocation");
+        assertEqual(4, memory.malloc(4), "Cache rounds lengths up to a power of two");
+        memory.free(0);
+        memory.free(0);
+        assertEqual(0, memory.malloc(4), "Cache hit reuses a freed block of the same class");
+        assertEqual(8, memory.malloc(5), "Cache classes are kept apart");
+        assertEqual(1, (int) memory.getThreadStats().getHits(), "Cache hits");
+        assertEqual(3, (int) memory.getThreadStats().getMisses(), "Cache misses");
+
+        for (int i = 0; i < 5; i++) {
+            memory.malloc(2);
+        }
+        for (int i = 0; i < 5; i++) {
+            memory.free(16 + 2 * i);
+        }
+        assertEqual(2, (int) memory.getThreadStats().getFlushedBlocks(), "Cache flushes half past the high water");
+        assertEqual(3, memory.getThreadStats().getCachedBlocks(), "Cache keeps the newer half");
+        assertString("arena 0 at 0:\n(26 , 974) (16 , 2) (18 , 2)\n(0 , 4) (4 , 4) (8 , 8) (20 , 2) (22 , 2) (24 , 2)\n\n",
+                memory.toString(), "Cache flush state");
+
+        Thread worker = new Thread(() -> memory.free(memory.malloc(300)));
+        Thread cached = new Thread(() -> memory.free(memory.malloc(100)));
+        worker.start();
+        cached.start();
+        try {
+            worker.join();
+            cached.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertEqual(1, memory.reclaimDeadThreadCaches(), "Cache reclaim of the exited thread that cached a block");
+        memory.free(0);
+        memory.free(4);
+        memory.free(8);
+        memory.defrag();
+        assertString("arena 0 at 0:\n(0 , 1000)\n\n", memory.toString(), "Cache state after defrag");
+
+        int single = memory.malloc(1);
+        memory.free(single);
+        assertEqual(-1, memory.malloc(-1), "Cache negative length with a cached block");
+        assertEqual(-1, memory.malloc(-300), "Cache negative length");
+        assertEqual(single, memory.malloc(1), "Cache keeps its block after a negative length");
+    }
+
+    private static void testLockFreeEngine() {
+        MemorySpace memory = new MemorySpace(new LockFreeEngine(100));
+        assertEqual(0, memory.malloc(3), "Lock-free allocation rounded to 4");
+        assertEqual(4, memory.malloc(4), "Lock-free second allocation");
+        assertEqual(8, memory.malloc(20), "Lock-free allocation rounded to 32");
+        memory.free(0);
+        memory.free(0);
+        assertEqual(0, memory.malloc(3), "Lock-free reuse of a block of the same class");
+        assertEqual(40, memory.malloc(4), "Lock-free allocation from the top");
+        assertEqual(-1, memory.malloc(64), "Lock-free failure");
+        assertEqual(44, memory.malloc(32), "Lock-free allocation from the top");
+        assertEqual(76, memory.malloc(16), "Lock-free allocation from the top");
+        memory.free(8);
+        assertEqual(8, memory.malloc(10), "Lock-free allocation of a larger free block");
+        assertString("(92 , 8)\n(0 , 3) (4 , 4) (8 , 10) (40 , 4) (44 , 32) (76 , 16)\n",
+                memory.toString(), "Lock-free state");
+        for (int address : new int[] { 0, 4, 8, 40, 44, 76 }) {
+            memory.free(address);
+        }
+        memory.defrag();
+        assertString("(0 , 100)\n\n", memory.toString(), "Lock-free state after defrag");
+
+        // Threads that free the same block at once push it only once
+        for (int i = 0; i < 200; i++) {
+            int address = memory.malloc(8);
+            Thread first = new Thread(() -> memory.free(address));
+            Thread second = new Thread(() -> memory.free(address));
+            first.start();
+            second.start();
+            try {
+                first.join();
+                second.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            assertEqual(address, memory.malloc(8), "Lock-free reuse after a racing double free");
+            assertEqual(1, memory.malloc(8) != address ? 1 : 0, "Lock-free racing double free pushed once");
+            memory.defrag();
+            memory.free(address);
+            memory.free(address + 8);
+            memory.defrag();
+        }
+
+        LockFreeEngine shared = new LockFreeEngine(8000);
+        java.util.concurrent.atomic.AtomicIntegerArray owners = new java.util.concurrent.atomic.AtomicIntegerArray(8000);
+        java.util.concurrent.atomic.AtomicInteger overlaps = new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t + 1;
+            threads[t] = new Thread(() -> {
+                java.util.Random random = new java.util.Random(id);
+                int[] live = new int[16];
+                int[] lengths = new int[16];
+                java.util.Arrays.fill(live, -1);
+                for (int i = 0; i < 20000; i++) {
+                    int slot = random.nextInt(live.length);
+                    if (live[slot] >= 0) {
+                        for (int a = live[slot]; a < live[slot] + lengths[slot]; a++) {
+                            owners.set(a, 0);
+                        }
+                        shared.free(live[slot]);
+                    }
+                    lengths[slot] = 1 + random.nextInt(40);
+                    live[slot] = shared.malloc(lengths[slot]);
+                    for (int a = live[slot]; live[slot] >= 0 && a < live[slot] + lengths[slot]; a++) {
+                        if (!owners.compareAndSet(a, 0, id)) {
+                            overlaps.incrementAndGet();
+                        }
+                    }
+                }
+                for (int slot = 0; slot < live.length; slot++) {
+                    for (int a = live[slot]; live[slot] >= 0 && a < live[slot] + lengths[slot]; a++) {
+                        owners.set(a, 0);
+                    }
+                    shared.free(live[slot]);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        assertEqual(0, overlaps.get(), "Lock-free engine never hands out a word twice");
+        shared.defrag();
+        assertString("(0 , 8000)\n\n", shared.toString(), "Lock-free state after all blocks are freed");
+    }
+
+    // One call of a recorded concurrent history: the request (a length to malloc, or
+    // -1 - address to free), the address that a malloc returned, and the ticks of a shared
+    // clock just before the call and just after it
+    private static final class Call {
+        final int request;
+        final int result;
+        final long invoked;
+        final long returned;
+
+        Call(int request, int result, long invoked, long returned) {
+            this.request = request;
+            this.result = result;
+            this.invoked = invoked;
+            this.returned = returned;
+        }
+    }
+
+    private static void testLockFreeLinearizability() {
+        // Small histories, so that every order of their calls can be tried
+        Call[] none = {};
+        for (int trial = 0; trial < 300; trial++) {
+            Call[][] history = recordHistory(new LockFreeEngine(64), 3, 4, new int[] { 1, 2, 3, 4 }, trial);
+            if (!linearizable(history, 64, none)) {
+                throw new AssertionError("Lock-free history " + trial + " has no sequential order");
+            }
+        }
+        // Two mallocs in a row that return the same block have no sequential order
+        Call[][] impossible = { { new Call(4, 0, 1, 2) }, { new Call(4, 0, 3, 4) } };
+        assertEqual(0, linearizable(impossible, 64, none) ? 1 : 0, "Linearizability check rejects a double allocation");
+        // Overlapping calls may be ordered either way
+        Call[][] overlapping = { { new Call(4, 4, 1, 4) }, { new Call(4, 0, 2, 3) } };
+        assertEqual(1, linearizable(overlapping, 64, none) ? 1 : 0, "Linearizability check reorders overlapping calls");
+
+        // With the top used up and blocks of classes 4 and 5 free, short requests take
+        // the larger blocks whole, and fail once both are taken
+        Call[] exhausted = { new Call(32, 0, 0, 0), new Call(16, 32, 0, 0), new Call(8, 48, 0, 0),
+                new Call(8, 56, 0, 0), new Call(-1, 0, 0, 0), new Call(-1 - 32, 0, 0, 0) };
+        int fallbacks = 0;
+        int failures = 0;
+        int contended = 0;
+        for (int trial = 0; trial < 300; trial++) {
+            LockFreeEngine engine = new LockFreeEngine(64);
+            for (Call call : exhausted) {
+                if (call.request < 0) {
+                    engine.free(-1 - call.request);
+                } else {
+                    assertEqual(call.result, engine.malloc(call.request), "Lock-free setup malloc");
+                }
+            }
+            // Yielding between the steps makes the threads interleave inside their calls
+            engine.setInterleaving(Thread::yield);
+            Call[][] history = recordHistory(engine, 3, 4, new int[] { 1, 2, 20 }, trial);
+            if (!linearizable(history, 64, exhausted)) {
+                throw new AssertionError("Lock-free fallback history " + trial + " has no sequential order");
+            }
+            for (Call[] calls : history) {
+                for (Call call : calls) {
+                    if (call.request > 0 && call.request <= 2 && (call.result == 0 || call.result == 32)) {
+                        fallbacks++;
+                        if (overlapsAnother(history, call)) {
+                            contended++;
+                        }
+                    } else if (call.request > 0 && call.result < 0) {
+                        failures++;
+                    }
+                }
+            }
+        }
+        assertEqual(1, fallbacks > 0 ? 1 : 0, "Lock-free histories take blocks of larger classes");
+        assertEqual(1, failures > 0 ? 1 : 0, "Lock-free histories fail after the fallback");
+        assertEqual(1, contended > 0 ? 1 : 0, "Lock-free histories take larger blocks while other calls run");
+        // A malloc that fails while a larger block stays free has no sequential order
+        Call[][] missed = { { new Call(1, -1, 1, 2) } };
+        assertEqual(0, linearizable(missed, 64, exhausted) ? 1 : 0, "Linearizability check rejects a missed fallback");
+    }
+
+    // Tells whether the given call of the given history overlaps another call in time.
+    private static boolean overlapsAnother(Call[][] history, Call call) {
+        for (Call[] calls : history) {
+            for (Call other : calls) {
+                if (other != call && other.invoked < call.returned && call.invoked < other.returned) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Runs random mallocs of the given lengths and frees on the given engine from the given
+    // number of threads at once, and returns the calls of each thread.
+    private static Call[][] recordHistory(AllocatorEngine engine, int threads, int calls, int[] lengths, long seed) {
+        java.util.concurrent.atomic.AtomicLong clock = new java.util.concurrent.atomic.AtomicLong();
+        java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+        Call[][] history = new Call[threads][calls];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Call[] record = history[t];
+            java.util.Random random = new java.util.Random(seed * threads + t);
+            workers[t] = new Thread(() -> {
+                java.util.List<Integer> live = new java.util.ArrayList<>();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < calls; i++) {
+                    if (!live.isEmpty() && random.nextBoolean()) {
+                        int address = live.remove(random.nextInt(live.size()));
+                        long invoked = clock.incrementAndGet();
+                        engine.free(address);
+                        record[i] = new Call(-1 - address, 0, invoked, clock.incrementAndGet());
+                    } else {
+                        int length = lengths[random.nextInt(lengths.length)];
+                        long invoked = clock.incrementAndGet();
+                        int address = engine.malloc(length);
+                        record[i] = new Call(length, address, invoked, clock.incrementAndGet());
+                        if (address >= 0) {
+                            live.add(address);
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return history;
+    }
+
+    // Tells whether the calls of the given history can be put in a sequential order that
+    // keeps the order of each thread, puts a call that returned before another call was
+    // invoked before it, and, after the given setup calls, gives the results of the
+    // history when replayed on a new LockFreeEngine of the given size. The blocks that
+    // the order hands out must also keep to the contract of MemorySpace: inside the
+    // memory space, and not overlapping any block that is still allocated.
+    private static boolean linearizable(Call[][] history, int maxSize, Call[] setup) {
+        int total = 0;
+        for (Call[] calls : history) {
+            total += calls.length;
+        }
+        java.util.List<Call> order = new java.util.ArrayList<>(java.util.Arrays.asList(setup));
+        return linearize(history, new int[history.length], order, setup.length + total, maxSize);
+    }
+
+    private static boolean linearize(Call[][] history, int[] next, java.util.List<Call> order, int total, int maxSize) {
+        if (order.size() == total) {
+            return true;
+        }
+        for (int t = 0; t < history.length; t++) {
+            if (next[t] == history[t].length) {
+                continue;
+            }
+            Call call = history[t][next[t]];
+            boolean minimal = true;
+            for (int u = 0; u < history.length && minimal; u++) {
+                minimal = u == t || next[u] == history[u].length || history[u][next[u]].returned > call.invoked;
+            }
+            if (!minimal) {
+                continue;
+            }
+            order.add(call);
+            next[t]++;
+            if (replays(order, maxSize) && linearize(history, next, order, total, maxSize)) {
+                return true;
+            }
+            next[t]--;
+            order.remove(order.size() - 1);
+        }
+        return false;
+    }
+
+    private static boolean replays(java.util.List<Call> order, int maxSize) {
+        LockFreeEngine model = new LockFreeEngine(maxSize);
+        int[] owners = new int[maxSize];
+        int[] lengths = new int[maxSize];
+        for (Call call : order) {
+            if (call.request < 0) {
+                int address = -1 - call.request;
+                model.free(address);
+                for (int i = address; i < address + lengths[address]; i++) {
+                    owners[i] = 0;
+                }
+                lengths[address] = 0;
+            } else if (model.malloc(call.request) != call.result) {
+                return false;
+            } else if (call.result >= 0) {
+                int length = Math.max(call.request, 1);
+                if (call.result + length > maxSize) {
+                    return false;
+                }
+                for (int i = call.result; i < call.result + length; i++) {
+                    if (owners[i] != 0) {
+                        return false;
+                    }
+                    owners[i] = call.result + 1;
+                }
+                lengths[call.result] = length;
+            }
+        }
+        return true;
+    }
+
+    private static void testRemoteFrees() {
+        ConcurrentMemorySpace memory = new ConcurrentMemorySpace(200, 2, AllocatorEngines.DEFAULT_ENGINE, true);
+        java.util.concurrent.ExecutorService producer = java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            assertEqual(0, memory.malloc(10), "Remote free consumer home allocation");
+            int block = producer.submit(() -> memory.malloc(10)).get();
+            assertEqual(100, block, "Remote free producer home allocation");
+            memory.free(block);
+            memory.free(block);
+            assertString("arena 0 at 0:\n(10 , 90)\n(0 , 10)\n\narena 1 at 100:\n(10 , 90)\n(0 , 10)\n\n",
+                    memory.toString(), "Remote free is queued");
+            assertEqual(110, (int) producer.submit(() -> memory.malloc(5)).get(), "Owner malloc after the queue is drained");
+            assertString("arena 0 at 0:\n(10 , 90)\n(0 , 10)\n\narena 1 at 100:\n(15 , 85) (0 , 10)\n(10 , 5)\n\n",
+                    memory.toString(), "Remote free is drained by the owner");
+            memory.free(110);
+            memory.free(0);
+            memory.defrag();
+            assertString("arena 0 at 0:\n(0 , 100)\n\narena 1 at 100:\n(0 , 100)\n\n",
+                    memory.toString(), "Remote frees are drained by defrag");
+        } catch (InterruptedException | java.util.concurrent.ExecutionException e) {
+            throw new AssertionError(e);
+        } finally {
+            producer.shutdown();
+        }
+    }
+
+    private static void testArenaRebalancer() {
+        ConcurrentMemorySpace memory = new ConcurrentMemorySpace(400, 2, AllocatorEngines.DEFAULT_ENGINE, false, 2);
+        ArenaRebalancer rebalancer = new ArenaRebalancer(memory);
+        assertEqual(0, memory.malloc(100), "Rebalance first extent");
+        assertEqual(100, memory.malloc(100), "Rebalance second extent");
+        assertEqual(300, memory.malloc(60), "Rebalance moves a free extent on a failed malloc");
+        assertEqual(1, (int) rebalancer.getKeptHomeMallocs(), "Rebalance keeps a malloc home");
+        assertEqual(100, (int) rebalancer.getMigratedWords(), "Rebalance migrated words");
+        assertEqual(3, memory.getExtentCount(0), "Rebalance recipient extents");
+        assertEqual(200, memory.malloc(60), "Rebalance falls back when no extent can move");
+        assertEqual(2, (int) rebalancer.getFailedMallocs(), "Rebalance failed mallocs");
+        assertEqual(1, (int) rebalancer.getKeptHomeMallocs(), "Rebalance kept home after fallback");
+        assertString("arena 0 at 0:\n\n(0 , 100)\n\narena 0 at 100:\n\n(0 , 100)\n\narena 0 at 300:\n(60 , 40)\n(0 , 60)\n\n"
+                + "arena 1 at 200:\n(60 , 40)\n(0 , 60)\n\n", memory.toString(), "Rebalance state");
+        assertEqual(0, rebalancer.rebalance(), "Rebalance below the threshold");
+
+        ConcurrentMemorySpace balanced = new ConcurrentMemorySpace(800, 2, AllocatorEngines.DEFAULT_ENGINE, false, 4);
+        ArenaRebalancer scheduled = new ArenaRebalancer(balanced, 0.2);
+        for (int i = 0; i < 4; i++) {
+            balanced.malloc(90);
+        }
+        assertEqual(1, scheduled.rebalance(), "Rebalance moves an extent to the arena under pressure");
+        assertEqual(5, balanced.getExtentCount(0), "Rebalance extents after a pass");
+        scheduled.start(1, java.util.concurrent.TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 1000 && scheduled.getScheduledPasses() == 0; i++) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        } finally {
+            scheduled.stop();
+        }
+        assertEqual(1, scheduled.getScheduledPasses() > 0 ? 1 : 0, "Rebalance runs in the background");
+        assertEqual(1, balanced.getExtentCount(1) >= 1 ? 1 : 0, "Rebalance leaves the donor an extent");
+
+        // With one extent per arena nothing can move, and no arena is locked to find that out
+        ConcurrentMemorySpace single = new ConcurrentMemorySpace(200, 2);
+        ArenaRebalancer idle = new ArenaRebalancer(single, 0);
+        assertEqual(0, single.malloc(100), "Rebalance with single extents, home arena");
+        assertEqual(100, single.malloc(100), "Rebalance with single extents, other arena");
+        assertEqual(-1, idle.onFailedMalloc(0, 10), "Rebalance with no spare extent");
+        assertEqual(0, idle.rebalance(), "Rebalance pass with no spare extent");
+        assertEqual(0, (int) idle.getMigrations(), "Rebalance migrations with no spare extent");
+
+        // A pass that throws does not stop the passes after it
+        java.util.concurrent.atomic.AtomicInteger throwing = new java.util.concurrent.atomic.AtomicInteger(1);
+        ConcurrentMemorySpace faulty = new ConcurrentMemorySpace(400, 2, AllocatorEngines.DEFAULT_ENGINE, false, 2) {
+            @Override
+            double estimateArenaPressure(int arena) {
+                if (throwing.getAndSet(0) == 1) {
+                    throw new IllegalStateException("pressure unavailable");
+                }
+                return super.estimateArenaPressure(arena);
+            }
+        };
+        ArenaRebalancer recovering = new ArenaRebalancer(faulty);
+        recovering.start(1, java.util.concurrent.TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 1000 && recovering.getScheduledPasses() == 0; i++) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        } finally {
+            recovering.stop();
+        }
+        assertEqual(1, (int) recovering.getFailedPasses(), "Rebalance counts a failed pass");
+        assertEqual(1, recovering.getScheduledPasses() > 0 ? 1 : 0, "Rebalance runs after a failed pass");
+    }
+
+    private static void testOffHeapMemorySpace() {
+        OffHeapMemorySpace memory = new OffHeapMemorySpace(100);
+        int first = memory.malloc(2);
+        int second = memory.malloc(3);
+        assertEqual(16, (int) memory.byteLength(first), "Off-heap block bytes");
+        memory.putLong(first, 0, 0x1122334455667788L);
+        memory.putInt(first, 8, 42);
+        memory.putInt(first, 12, -7);
+        memory.putDouble(second, 16, 2.5);
+        assertEqual(1, memory.getLong(first, 0) == 0x1122334455667788L ? 1 : 0, "Off-heap long");
+        assertEqual(42, memory.getInt(first, 8), "Off-heap int");
+        assertEqual(-7, memory.getInt(first, 12), "Off-heap int at the end of a block");
+        assertEqual(1, memory.getDouble(second, 16) == 2.5 ? 1 : 0, "Off-heap double");
+
+        memory.write(second, 0, new byte[] { 1, 2, 3, 4, 5 }, 1, 3);
+        memory.copy(second, 0, first, 5, 3);
+        byte[] bytes = new byte[4];
+        memory.read(first, 5, bytes, 1, 3);
+        assertString("[0, 2, 3, 4]", java.util.Arrays.toString(bytes), "Off-heap bulk copy");
+        assertEqual(3, memory.slice(second).get(1), "Off-heap slice");
+        assertEqual(24, memory.slice(second).capacity(), "Off-heap slice capacity");
+
+        try {
+            memory.getInt(first, 13);
+            throw new AssertionError("Off-heap read past the end of a block");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        try {
+            memory.copy(first, 0, second, 20, 8);
+            throw new AssertionError("Off-heap copy past the end of a block");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        memory.free(first);
+        try {
+            memory.getLong(first, 0);
+            throw new AssertionError("Off-heap read of a freed block");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        int empty = memory.malloc(0);
+        assertEqual(0, (int) memory.byteLength(empty), "Off-heap zero-length block");
+        assertEqual(1, memory.malloc(1) != empty ? 1 : 0, "Off-heap zero-length block has its own address");
+
+
+        OffHeapMemorySpace small = new OffHeapMemorySpace(4);
+        int whole = small.malloc(4);
+        small.free(whole);
+        int reused = small.malloc(1);
+        assertEqual(whole, reused, "Off-heap block reuses a freed address");
+        assertEqual(8, (int) small.byteLength(reused), "Off-heap length follows the block at an address");
+        assertEqual(24, (int) small.byteLength(small.malloc(3)), "Off-heap length of a second block");
+    }
+
+    private static void testMappedMemorySpace() {
+        java.nio.file.Path file = null;
+        try {
+            file = java.nio.file.Files.createTempFile("memoryspace", ".bin");
+            OffHeapMemorySpace memory = new OffHeapMemorySpace(64, "first-fit", file);
+            assertEqual(512, (int) java.nio.file.Files.size(file), "Mapped file is extended to max size");
+            int first = memory.malloc(4);
+            int second = memory.malloc(4);
+            memory.putLong(first, 8, 123456789L);
+            memory.putInt(second, 0, 99);
+            memory.force(second);
+            assertEqual(1, memory.forceDirty(), "Mapped force of the dirty blocks");
+            assertEqual(0, memory.forceDirty(), "Mapped blocks are clean after force");
+            java.nio.ByteBuffer slice = memory.slice(second);
+            memory.force(second);
+            slice.putInt(4, 77);
+            assertEqual(1, memory.forceDirty(), "Mapped sliced block is dirty after force");
+            assertEqual(1, memory.forceDirty(), "Mapped sliced block stays dirty");
+
+            OffHeapMemorySpace view = new OffHeapMemorySpace(64, "first-fit", file, true);
+            assertEqual(123456789, (int) view.getLong(first, 8), "Mapped read-only view sees the data");
+            assertEqual(99, view.getInt(second, 0), "Mapped read-only view of a second block");
+            assertEqual(77, view.slice(second, 4, 4).getInt(0), "Mapped read-only slice of a range");
+            view.force(second);
+            assertEqual(0, view.forceDirty(), "Mapped read-only view has no dirty blocks");
+            try {
+                view.slice(second);
+                throw new AssertionError("Mapped read-only view knows no blocks");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                view.putInt(second, 0, 1);
+                throw new AssertionError("Mapped write to a read-only view");
+            } catch (java.nio.ReadOnlyBufferException e) {
+                // expected
+            }
+            try {
+                new OffHeapMemorySpace(65, "first-fit", file, true);
+                throw new AssertionError("Mapped read-only view longer than the file");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            memory.free(second);
+            assertEqual(0, memory.forceDirty(), "Mapped freed block is not dirty");
+        } catch (java.io.IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            if (file != null) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private static void testSnapshot() {
+        java.nio.file.Path file = null;
+        try {
+            file = java.nio.file.Files.createTempFile("memoryspace", ".snapshot");
+            MemorySpace memory = new MemorySpace(new FirstFitEngine(1000, false, true));
+            int[] addresses = new int[10];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = memory.malloc(10 * (i + 1));
+            }
+            memory.free(addresses[7]);
+            memory.free(addresses[2]);
+            memory.free(addresses[4]);
+            memory.malloc(5);
+            memory.malloc(0);
+            memory.snapshot(file);
+
+            MemorySpace restored = MemorySpace.restore(file);
+            assertString(memory.toString(), restored.toString(), "Snapshot restores both lists");
+            assertEqual(memory.malloc(15), restored.malloc(15), "Snapshot restores the rover");
+            memory.free(addresses[3]);
+            restored.free(addresses[3]);
+            memory.defrag();
+            restored.defrag();
+            assertString(memory.toString(), restored.toString(), "Snapshot restores a working engine");
+
+            MemorySpace empty = new MemorySpace(100);
+            empty.snapshot(file);
+            assertString("(0 , 100)\n", MemorySpace.restore(file).toString(), "Snapshot of a new memory space");
+
+            java.nio.file.Files.write(file, new byte[] { 'M', 'S', 'N', 'P', 1 });
+            try {
+                MemorySpace.restore(file);
+                throw new AssertionError("Snapshot restore of a truncated file");
+            } catch (java.io.EOFException e) {
+                // expected
+            }
+            try {
+                new MemorySpace(100, "buddy").snapshot(file);
+                throw new AssertionError("Snapshot of an engine without snapshots");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } catch (java.io.IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            if (file != null) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private static void testJournaledMemorySpace() {
+        java.nio.file.Path directory = null;
+        try {
+            directory = java.nio.file.Files.createTempDirectory("memoryspace");
+            JournaledMemorySpace memory = JournaledMemorySpace.open(directory, 100);
+            int first = memory.malloc(20);
+            int second = memory.malloc(30);
+            memory.malloc(10);
+            memory.free(first);
+            memory.free(second);
+            memory.defrag();
+            memory.malloc(200);
+            memory.sync();
+            assertEqual(6, (int) memory.getJournal().getDurableSequence(), "Journal makes the calls durable");
+            String expected = memory.toString();
+            memory.close();
+
+            JournaledMemorySpace recovered = JournaledMemorySpace.open(directory, 100);
+            assertString(expected, recovered.toString(), "Journal replay after a restart");
+            recovered.checkpoint();
+            assertEqual(0, (int) java.nio.file.Files.size(directory.resolve(JournaledMemorySpace.JOURNAL_FILE)),
+                    "Checkpoint empties the journal");
+            int third = recovered.malloc(5);
+            recovered.free(third - 60);
+            recovered.free(third);
+            recovered.malloc(7);
+            expected = recovered.toString();
+            recovered.close();
+
+            // A crash in the middle of writing a batch leaves a partial frame behind
+            java.nio.file.Path journal = directory.resolve(JournaledMemorySpace.JOURNAL_FILE);
+            long size = java.nio.file.Files.size(journal);
+            java.nio.file.Files.write(journal, new byte[] { 0, 0, 0, 40, 1, 2 },
+                    java.nio.file.StandardOpenOption.APPEND);
+            JournaledMemorySpace restarted = JournaledMemorySpace.open(directory, 100);
+            assertString(expected, restarted.toString(), "Journal replay after a checkpoint");
+            assertEqual((int) size, (int) java.nio.file.Files.size(journal), "Journal replay cuts off a partial frame");
+            assertEqual(10, (int) restarted.getJournal().getAppendedSequence(), "Journal sequence survives restarts");
+            int fourth = restarted.malloc(3);
+            restarted.sync();
+            restarted.free(fourth);
+            restarted.sync();
+            long lastFrame = java.nio.file.Files.size(journal);
+            restarted.malloc(4);
+            restarted.close();
+
+            // A crash while writing the last batch leaves a corrupt frame at the end
+            byte[] frames = java.nio.file.Files.readAllBytes(journal);
+            byte[] corrupt = frames.clone();
+            corrupt[corrupt.length - 1] ^= 1;
+            java.nio.file.Files.write(journal, corrupt);
+            JournaledMemorySpace torn = JournaledMemorySpace.open(directory, 100);
+            assertEqual((int) lastFrame, (int) java.nio.file.Files.size(journal), "Journal replay cuts off a torn frame");
+            assertEqual(12, (int) torn.getJournal().getAppendedSequence(), "Journal replay stops at a torn frame");
+            torn.close();
+
+            // A corrupt frame that is followed by valid frames is not the trace of a crash
+            corrupt = frames.clone();
+            corrupt[(int) size + 16] ^= 1;
+            java.nio.file.Files.write(journal, corrupt);
+            try {
+                JournaledMemorySpace.open(directory, 100).close();
+                throw new AssertionError("Journal replay accepts a corrupt frame before valid ones");
+            } catch (java.io.IOException e) {
+                assertEqual(corrupt.length, (int) java.nio.file.Files.size(journal),
+                        "Journal replay keeps the frames after a corrupt one");
+            }
+
+            // A valid frame is found after a corrupt one even if it is longer than the scan
+            java.nio.file.Path scanned = java.nio.file.Files.createTempFile("memoryspace", ".journal");
+            scanned.toFile().deleteOnExit();
+            byte[] payload = new byte[8 + 100000];
+            payload[7] = 1;
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(payload);
+            java.nio.ByteBuffer bytes = java.nio.ByteBuffer.allocate(16 + 70000 + 8 + payload.length);
+            bytes.putInt(8).putInt(0).putLong(0).position(16 + 70000);
+            bytes.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            java.nio.file.Files.write(scanned, bytes.array());
+            try {
+                MemoryJournal.replay(scanned, 0, new FirstFitEngine(100, false, true));
+                throw new AssertionError("Journal replay misses a long frame after a corrupt one");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+            bytes.array()[bytes.limit() - 1] ^= 1;
+            java.nio.file.Files.write(scanned, bytes.array());
+            assertEqual(0, (int) MemoryJournal.replay(scanned, 0, new FirstFitEngine(100, false, true)),
+                    "Journal replay of a corrupt frame followed by garbage");
+            assertEqual(0, (int) java.nio.file.Files.size(scanned), "Journal replay cuts off the garbage");
+        } catch (java.io.IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            if (directory != null) {
+                // Files registered later are deleted first
+                directory.toFile().deleteOnExit();
+                for (String name : new String[] { JournaledMemorySpace.CHECKPOINT_FILE, JournaledMemorySpace.JOURNAL_FILE }) {
+                    directory.resolve(name).toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private static void testCompactionPolicy() {
+        MemorySpace memory = new MemorySpace(100);
+        int first = memory.malloc(50);
+        memory.free(first);
+        memory.free(memory.malloc(50));
+        assertEqual(-1, memory.malloc(80), "Malloc without a compaction policy");
+
+        CompactionPolicy policy = new CompactionPolicy();
+        memory.setCompactionPolicy(policy);
+        int large = memory.malloc(80);
+        assertEqual(0, large, "Compaction saves a fragmented malloc");
+        assertEqual(-1, memory.malloc(30), "Compaction is skipped when nothing was freed");
+        assertEqual(1, (int) policy.getSkippedUnchanged(), "Compaction skipped as unchanged");
+
+        memory.free(memory.malloc(10));
+        assertEqual(-1, memory.malloc(30), "Compaction cannot save a malloc that is out of memory");
+        assertEqual(1, policy.getBackoff(), "Compaction backs off after a fruitless defrag");
+        memory.free(large);
+        assertEqual(-1, memory.malloc(90), "Compaction is skipped while backing off");
+        assertEqual(90, memory.malloc(90) + 90, "Compaction resumes after backing off");
+        assertEqual(0, policy.getBackoff(), "Compaction stops backing off after a rescue");
+        assertString("(90 , 10)\n(0 , 90)\n", memory.toString(), "Compaction state");
+        assertEqual(5, (int) policy.getFailures(), "Compaction failures");
+        assertEqual(3, (int) policy.getDefrags(), "Compaction defrags");
+        assertEqual(2, (int) policy.getRescues(), "Compaction rescues");
+        assertEqual(1, (int) policy.getSkippedBackoff(), "Compaction skipped while backing off");
+
+        // The backoff after a fruitless defrag holds only for requests at least as long
+        memory = new MemorySpace(100);
+        policy = new CompactionPolicy();
+        memory.setCompactionPolicy(policy);
+        int left = memory.malloc(40);
+        int middle = memory.malloc(40);
+        memory.free(left);
+        memory.free(memory.malloc(20));
+        assertEqual(-1, memory.malloc(50), "Compaction cannot save a malloc that is too long");
+        assertEqual(1, policy.getBackoff(), "Compaction backs off after a fruitless defrag");
+        assertEqual(50, policy.getBackoffLength(), "Compaction backs off for requests as long");
+        memory.free(middle);
+        left = memory.malloc(45);
+        assertEqual(0, left, "Compaction saves a shorter request while backing off");
+        assertEqual(Integer.MAX_VALUE, policy.getBackoffLength(), "Compaction stops backing off after a rescue");
+
+        int right = memory.malloc(25);
+        middle = memory.malloc(30);
+        memory.free(left);
+        memory.free(middle);
+        assertEqual(-1, memory.malloc(60), "Compaction cannot save a malloc that is too long");
+        memory.free(right);
+        assertEqual(-1, memory.malloc(70), "Compaction is skipped for a longer request while backing off");
+        assertEqual(0, memory.malloc(70), "Compaction resumes after backing off");
+        assertEqual(1, (int) policy.getSkippedBackoff(), "Compaction skipped while backing off");
+        assertEqual(2, (int) policy.getRescues(), "Compaction rescues");
+
+        // Defrags that cost more than the threshold per rescue are skipped for any length
+        policy = new CompactionPolicy(1000);
+        policy.recordDefrag(10, 4000, true);
+        assertEqual(4000, (int) policy.getNanosPerRescue(), "Compaction cost per rescue");
+        assertEqual(4, policy.getCostBackoff(), "Compaction backs off for the cost");
+        for (int i = 0; i < 4; i++) {
+            assertEqual(0, policy.shouldDefrag(1) ? 1 : 0, "Compaction is skipped while too costly");
+        }
+        assertEqual(1, policy.shouldDefrag(1) ? 1 : 0, "Compaction resumes after the cost backoff");
+        assertEqual(4, (int) policy.getSkippedCost(), "Compaction skipped for the cost");
+        policy.recordDefrag(10, 0, true);
+        assertEqual(3000, (int) policy.getNanosPerRescue(), "Compaction cost falls with cheap defrags");
+        assertEqual(3, policy.getCostBackoff(), "Compaction backs off less for a lower cost");
+        policy.recordDefrag(10, 0, false);
+        assertEqual(3000, (int) policy.getNanosPerRescue(), "Compaction cost counts fruitless defrags");
+        assertEqual(1, policy.getBackoff(), "Compaction backs off after a fruitless defrag");
+        for (int i = 0; i < 4; i++) {
+            policy.recordDefrag(10, 0, true);
+        }
+        assertEqual(0, policy.getCostBackoff(), "Compaction stops backing off once defrags are cheap");
+        assertEqual(1, policy.shouldDefrag(1) ? 1 : 0, "Compaction runs when defrags are cheap");
+
+        policy = new CompactionPolicy(1);
+        policy.recordDefrag(10, 1000000, false);
+        assertEqual(0, policy.getCostBackoff(), "Compaction cost needs a recent rescue");
+        assertEqual(1, policy.shouldDefrag(5) ? 1 : 0, "Compaction saves a shorter request without rescues");
+        try {
+            new CompactionPolicy(0);
+            throw new AssertionError("Compaction with a zero cost threshold");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     private static void assertEqual(int expected, int actual, String message) {
         if (expected != actual) {
             throw new AssertionError(message + ": Expected " + expected + " but got " + actual);
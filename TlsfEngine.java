@@ -0,0 +1,312 @@
+/**
+ * An allocator engine that implements two-level segregated fit (TLSF), in which
+ * both malloc and free take constant time in the worst case.
+ * <p>
+ * The free blocks are kept in size classes of two levels. The first level is the
+ * power of two below the block's length, and the second level divides each power
+ * of two into SL_COUNT equal ranges. Each class has a list of its free blocks, and
+ * two levels of bitmaps record which classes are non-empty. malloc rounds the request
+ * up to the next class boundary, so that every block of the found class is large
+ * enough, and finds the first non-empty class with two bit scans. If none is found,
+ * the head of the request's own class is tried as well.
+ * <p>
+ * Every block also knows its physical neighbours, so free merges the freed block with
+ * a free predecessor and a free successor right away. Free blocks are therefore always
+ * coalesced, and defrag has no work to do. Zero-length requests are given one word.
+ * <p>
+ * free finds the allocated block in an array indexed by base address, rather than in a
+ * hash map, so it does no hashing and never waits for a rehash. The blocks dropped by a
+ * merge are kept for the next split, so a steady pattern of mallocs and frees does not
+ * allocate on the Java heap.
+ */
+public class TlsfEngine implements AllocatorEngine {
+
+	// log2 of the number of second-level classes per first-level class
+	private static final int SL_LOG2 = 4;
+
+	// The number of second-level classes per first-level class
+	private static final int SL_COUNT = 1 << SL_LOG2;
+
+	// The number of first-level classes: class 0 holds the lengths below SL_COUNT,
+	// and class f - SL_LOG2 + 1 holds the lengths between 2^f and 2^(f+1) - 1
+	private static final int FL_COUNT = 31 - SL_LOG2 + 1;
+
+	// A block of the memory space, either free or allocated
+	private static class Block {
+		int baseAddress;
+		int length;
+		boolean free;
+		Block prevPhys;   // the block that ends where this block begins
+		Block nextPhys;   // the block that begins where this block ends
+		Block prevFree;   // the previous block in the same free list, or in the allocated list
+		Block nextFree;   // the next block in the same free list, or in the allocated list
+
+		Block(int baseAddress, int length) {
+			this.baseAddress = baseAddress;
+			this.length = length;
+		}
+	}
+
+	// The size of the managed memory space
+	private int maxSize;
+
+	// The allocated blocks, by base address
+	private Block[] used;
+
+	// The first and last allocated blocks, in the order in which they were allocated
+	private Block usedHead;
+	private Block usedTail;
+
+	// Blocks that were dropped by a merge and may be reused by a split, linked by nextFree
+	private Block spare;
+
+	// The first block of the memory space, in address order
+	private Block firstPhys;
+
+	// Bit f is set if some second-level class of first-level class f is non-empty
+	private int flBitmap;
+
+	// Bit s of slBitmaps[f] is set if class (f, s) is non-empty
+	private int[] slBitmaps;
+
+	// heads[f][s] is the first block in the free list of class (f, s)
+	private Block[][] heads;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 * 
+	 * @param maxSize
+	 *            the size of the memory space to be managed
+	 */
+	public TlsfEngine(int maxSize) {
+		this.maxSize = maxSize;
+		used = new Block[Math.max(maxSize, 0)];
+		slBitmaps = new int[FL_COUNT];
+		heads = new Block[FL_COUNT][SL_COUNT];
+		if (maxSize > 0) {
+			firstPhys = new Block(0, maxSize);
+			insertFree(firstPhys);
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the first block
+	 * of the smallest non-empty class whose blocks are all large enough. The rest of the
+	 * found block becomes a new free block.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length < 0 || length > maxSize) {
+			return -1;
+		}
+		if (length == 0) {
+			length = 1;
+		}
+		Block block = findSuitable(length);
+		if (block == null) {
+			block = heads[firstLevel(length)][secondLevel(length)];
+			if (block == null || block.length < length) {
+				return -1;
+			}
+		}
+		removeFree(block);
+		if (block.length > length) {
+			Block rest = newBlock(block.baseAddress + length, block.length - length);
+			rest.prevPhys = block;
+			rest.nextPhys = block.nextPhys;
+			if (rest.nextPhys != null) {
+				rest.nextPhys.prevPhys = rest;
+			}
+			block.nextPhys = rest;
+			block.length = length;
+			insertFree(rest);
+		}
+		used[block.baseAddress] = block;
+		block.prevFree = usedTail;
+		if (usedTail != null) {
+			usedTail.nextFree = block;
+		} else {
+			usedHead = block;
+		}
+		usedTail = block;
+		return block.baseAddress;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and merges it
+	 * with its physical neighbours that are free.
+	 * 
+	 * @param address
+	 *            the starting address of the block to free
+	 */
+	public void free(int address) {
+		if (usedHead == null) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		if (address < 0 || address >= used.length || used[address] == null) {
+			return;
+		}
+		Block block = used[address];
+		used[address] = null;
+		if (block.prevFree != null) {
+			block.prevFree.nextFree = block.nextFree;
+		} else {
+			usedHead = block.nextFree;
+		}
+		if (block.nextFree != null) {
+			block.nextFree.prevFree = block.prevFree;
+		} else {
+			usedTail = block.prevFree;
+		}
+		Block prev = block.prevPhys;
+		if (prev != null && prev.free) {
+			removeFree(prev);
+			prev.length += block.length;
+			unlinkPhys(block);
+			block = prev;
+		}
+		Block next = block.nextPhys;
+		if (next != null && next.free) {
+			removeFree(next);
+			block.length += next.length;
+			unlinkPhys(next);
+		}
+		insertFree(block);
+	}
+
+	/**
+	 * Does nothing: free blocks are merged with their neighbours as soon as they are freed.
+	 */
+	public void defrag() {
+	}
+
+	/**
+	 * A textual representation of the free blocks, in address order, and the allocated
+	 * blocks of this engine, for debugging purposes.
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (Block b = firstPhys; b != null; b = b.nextPhys) {
+			if (b.free) {
+				str += new MemoryBlock(b.baseAddress, b.length) + " ";
+			}
+		}
+		str += "\n";
+		for (Block b = usedHead; b != null; b = b.nextFree) {
+			str += new MemoryBlock(b.baseAddress, b.length) + " ";
+		}
+		return str;
+	}
+
+	// Returns the first block of the smallest non-empty class whose blocks all have at
+	// least the given length, or null if there is no such class.
+	private Block findSuitable(int length) {
+		if (length >= SL_COUNT) {
+			int f = 31 - Integer.numberOfLeadingZeros(length);
+			length += (1 << (f - SL_LOG2)) - 1;
+			if (length < 0) {
+				return null;
+			}
+		}
+		int fl = firstLevel(length);
+		int sl = secondLevel(length);
+		int slMap = slBitmaps[fl] & (-1 << sl);
+		if (slMap == 0) {
+			int flMap = fl + 1 < FL_COUNT ? flBitmap & (-1 << (fl + 1)) : 0;
+			if (flMap == 0) {
+				return null;
+			}
+			fl = Integer.numberOfTrailingZeros(flMap);
+			slMap = slBitmaps[fl];
+		}
+		return heads[fl][Integer.numberOfTrailingZeros(slMap)];
+	}
+
+	// Adds the given block to the front of the free list of its class.
+	private void insertFree(Block block) {
+		int fl = firstLevel(block.length);
+		int sl = secondLevel(block.length);
+		block.free = true;
+		block.prevFree = null;
+		block.nextFree = heads[fl][sl];
+		if (block.nextFree != null) {
+			block.nextFree.prevFree = block;
+		}
+		heads[fl][sl] = block;
+		slBitmaps[fl] |= 1 << sl;
+		flBitmap |= 1 << fl;
+	}
+
+	// Removes the given block from the free list of its class.
+	private void removeFree(Block block) {
+		int fl = firstLevel(block.length);
+		int sl = secondLevel(block.length);
+		if (block.prevFree != null) {
+			block.prevFree.nextFree = block.nextFree;
+		} else {
+			heads[fl][sl] = block.nextFree;
+		}
+		if (block.nextFree != null) {
+			block.nextFree.prevFree = block.prevFree;
+		}
+		block.prevFree = null;
+		block.nextFree = null;
+		block.free = false;
+		if (heads[fl][sl] == null) {
+			slBitmaps[fl] &= ~(1 << sl);
+			if (slBitmaps[fl] == 0) {
+				flBitmap &= ~(1 << fl);
+			}
+		}
+	}
+
+	// Removes the given block from the physical list; its space belongs to its predecessor.
+	// The block is kept as a spare for the next split.
+	private void unlinkPhys(Block block) {
+		if (block.prevPhys != null) {
+			block.prevPhys.nextPhys = block.nextPhys;
+		}
+		if (block.nextPhys != null) {
+			block.nextPhys.prevPhys = block.prevPhys;
+		}
+		block.prevPhys = null;
+		block.nextPhys = null;
+		block.nextFree = spare;
+		spare = block;
+	}
+
+	// Returns a spare block, or a new one if there is none, with the given base address
+	// and length.
+	private Block newBlock(int baseAddress, int length) {
+		Block block = spare;
+		if (block == null) {
+			return new Block(baseAddress, length);
+		}
+		spare = block.nextFree;
+		block.nextFree = null;
+		block.baseAddress = baseAddress;
+		block.length = length;
+		return block;
+	}
+
+	// Returns the first-level class of the given length.
+	private static int firstLevel(int length) {
+		if (length < SL_COUNT) {
+			return 0;
+		}
+		return 31 - Integer.numberOfLeadingZeros(length) - SL_LOG2 + 1;
+	}
+
+	// Returns the second-level class of the given length, within its first-level class.
+	private static int secondLevel(int length) {
+		if (length < SL_COUNT) {
+			return length;
+		}
+		int f = 31 - Integer.numberOfLeadingZeros(length);
+		return (length >>> (f - SL_LOG2)) - SL_COUNT;
+	}
+}